@@ -0,0 +1,212 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class limits how many operations of each class run against the
+ * database at once, across every Retail process, and gives each operation
+ * a deadline that is enforced on every statement with statement_timeout.
+ *
+ * The limits are shared through Postgres advisory locks: an operation class
+ * owns runSlots lock keys for running operations and queueSlots keys for
+ * waiting ones. An operation that finds every run slot taken takes a queue
+ * slot and blocks in Postgres on the run slot its queue slot maps to, until
+ * that slot frees up or its deadline passes, so waiting costs no polling;
+ * when the queue is full as well it is rejected at once, so interactive
+ * users get a fast "busy" instead of piling onto an overloaded database.
+ *
+ * Slots are taken lazily on the first statement of an operation, so an
+ * operation answered from the in-memory snapshot or indexes costs nothing.
+ * The slots live on shard 0; the deadline applies on every shard an
+ * operation touches.
+ */
+public class AdmissionControl {
+   /**
+    * Operation classes with their limits and deadlines.
+    */
+   public enum OperationClass {
+      // placing orders and the other short interactive writes
+      CHECKOUT(8, 16, 5000, false),
+      // listings and lookups for customers and managers
+      BROWSE(8, 16, 2000, false),
+      // full history reports and aggregates
+      ADMIN_REPORT(1, 2, 30000, false),
+      // archive export; it streams whole tables, so the deadline caps each statement instead of the operation
+      ARCHIVE_EXPORT(1, 2, 30000, true);
+
+      final int runSlots;
+      final int queueSlots;
+      final long deadlineMillis;
+      // the deadline restarts with every statement once the slot is taken
+      final boolean perStatement;
+
+      OperationClass(int runSlots, int queueSlots, long deadlineMillis, boolean perStatement) {
+         this.runSlots = runSlots;
+         this.queueSlots = queueSlots;
+         this.deadlineMillis = deadlineMillis;
+         this.perStatement = perStatement;
+      }
+
+      // first keys of the two-key advisory locks for this class
+      int runKey() {
+         return 30000 + 2 * ordinal();
+      }
+
+      int queueKey() {
+         return 30001 + 2 * ordinal();
+      }
+   }
+
+   // a connection's statement_timeout is set this far below the time left, so it holds for the statements that follow
+   private static final long TIMEOUT_SLACK_MILLIS = 250;
+
+   // connection to shard 0, which holds the slot locks
+   private final Connection connection;
+   private OperationClass current = null;
+   private long deadline = 0;
+   private int slot = -1;
+   // statement_timeout currently set on each connection, 0 for none
+   private final Map<Connection, Long> statementTimeouts = new HashMap<Connection, Long>();
+
+   public AdmissionControl(Connection connection) {
+      this.connection = connection;
+   }
+
+   /**
+    * Starts an operation of the given class. Its deadline starts now; its
+    * slot is taken on the first statement.
+    *
+    * @param opClass the class of the operation
+    */
+   public void begin(OperationClass opClass) {
+      end();
+      current = opClass;
+      deadline = System.currentTimeMillis() + opClass.deadlineMillis;
+   }
+
+   /**
+    * Ends the current operation and gives back its slot.
+    */
+   public void end() {
+      if (slot >= 0) {
+         String unlock = String.format("SELECT pg_advisory_unlock(%d, %d), set_config('statement_timeout', '0', false)", current.runKey(), slot);
+         try {
+            query(unlock);
+            statementTimeouts.put(connection, 0L);
+         } catch (SQLException e) {
+            // a nearly spent timeout can cancel even the unlock; retry without it so the slot is not held until logout
+            try {
+               statementTimeouts.put(connection, -1L);
+               setStatementTimeout(connection, 0);
+               query(unlock);
+            } catch (SQLException ignored) {
+               // the lock goes away with the session anyway
+            }
+         }
+      }
+      current = null;
+      deadline = 0;
+      slot = -1;
+   }
+
+   /**
+    * Called before every statement: takes the operation's slot if it has
+    * none yet and caps the statement at the time left. The cap is set
+    * TIMEOUT_SLACK_MILLIS below the time left and only refreshed once the
+    * time left has dropped under it, so most statements cost no extra round
+    * trip and none can run past the deadline.
+    *
+    * @param conn the connection the statement is about to run on
+    * @throws java.sql.SQLException when the operation is rejected or out of time
+    */
+   public void beforeStatement(Connection conn) throws SQLException {
+      if (current == null) {
+         setStatementTimeout(conn, 0);
+         return;
+      }
+      if (slot < 0) {
+         acquire();
+      }
+      if (current.perStatement) {
+         deadline = System.currentTimeMillis() + current.deadlineMillis;
+      }
+      long remaining = remaining();
+      Long timeout = statementTimeouts.get(conn);
+      // a cap well below the time left is left over from an earlier operation
+      if (timeout == null || timeout <= 0 || timeout > remaining || timeout < cap(remaining)) {
+         setStatementTimeout(conn, cap(remaining));
+      }
+   }
+
+   // statement_timeout for the time left; within the last slack it is the time left itself
+   private static long cap(long remaining) {
+      return remaining > TIMEOUT_SLACK_MILLIS ? remaining - TIMEOUT_SLACK_MILLIS : remaining;
+   }
+
+   private long remaining() throws SQLException {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+         throw new SQLException("The operation took too long and was cancelled, please try again.");
+      }
+      return remaining;
+   }
+
+   private void acquire() throws SQLException {
+      // the first attempt also caps the statements that follow on the primary connection
+      long timeout = cap(remaining());
+      slot = trySlot(current.runKey(), current.runSlots, timeout);
+      statementTimeouts.put(connection, timeout);
+      if (slot >= 0) {
+         return;
+      }
+      int queueSlot = trySlot(current.queueKey(), current.queueSlots, -1);
+      if (queueSlot < 0) {
+         throw new SQLException("The system is busy, please try again shortly.");
+      }
+      try {
+         // the queue slots are spread evenly over the run slots; the cap set above cancels the wait before the deadline
+         int runSlot = queueSlot % current.runSlots;
+         query(String.format("SELECT pg_advisory_lock(%d, %d)", current.runKey(), runSlot));
+         slot = runSlot;
+      } catch (SQLException e) {
+         throw new SQLException("The system is busy, please try again shortly.");
+      } finally {
+         query(String.format("SELECT pg_advisory_unlock(%d, %d)", current.queueKey(), queueSlot));
+      }
+   }
+
+   /*
+    * Takes the first free slot of a key in one round trip, setting statement_timeout
+    * in the same round trip unless timeoutMillis is negative; returns -1 when all are taken
+    **/
+   private int trySlot(int key, int slots, long timeoutMillis) throws SQLException {
+      String select = String.format("SELECT s FROM generate_series(0, %d) s WHERE pg_try_advisory_lock(%d, s) LIMIT 1", slots - 1, key);
+      if (timeoutMillis >= 0) {
+         select = String.format("SELECT (%s), set_config('statement_timeout', '%d', false)", select, timeoutMillis);
+      }
+      String result = query(select);
+      return result == null ? -1 : Integer.parseInt(result);
+   }
+
+   private void setStatementTimeout(Connection conn, long millis) throws SQLException {
+      Long current = statementTimeouts.get(conn);
+      if (current != null ? current == millis : millis == 0) {
+         return;
+      }
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate(String.format("SET statement_timeout = %d", millis));
+      stmt.close();
+      statementTimeouts.put(conn, millis);
+   }
+
+   private String query(String query) throws SQLException {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery(query);
+      String result = rs.next() ? rs.getString(1) : null;
+      stmt.close();
+      return result;
+   }
+}//end AdmissionControl
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class keeps an in-memory inverted inventory index, product name to the
+ * stores that carry it and their stock, so that "which stores near me have
+ * this product" is answered without querying the stores one by one.
+ *
+ * The index is fed by the ReferenceSnapshot (full loads and patched rows,
+ * which bring in other processes' changes) and by this process' own writes
+ * in placeOrder, updateProduct, updateProductAdmin and
+ * placeProductSupplyRequests, so a customer sees their own order at once.
+ * Product names are matched trimmed and case-insensitively.
+ */
+public class InventoryIndex implements ReferenceSnapshot.Listener {
+   /**
+    * One store returned by nearest().
+    */
+   public static class StoreStock {
+      public final int storeID;
+      public final String storeName;
+      public final int numberOfUnits;
+      public final double distance;
+
+      StoreStock(int storeID, String storeName, int numberOfUnits, double distance) {
+         this.storeID = storeID;
+         this.storeName = storeName;
+         this.numberOfUnits = numberOfUnits;
+         this.distance = distance;
+      }
+   }
+
+   // farthest first, so the head of a bounded queue is the one to drop
+   private static final Comparator<StoreStock> FARTHEST_FIRST = new Comparator<StoreStock>() {
+      public int compare(StoreStock a, StoreStock b) {
+         return Double.compare(b.distance, a.distance);
+      }
+   };
+
+   // product key -> (storeID -> numberOfUnits)
+   private final Map<String, Map<Integer, Integer>> stock = new HashMap<String, Map<Integer, Integer>>();
+   // storeID -> (latitude, longitude)
+   private final Map<Integer, double[]> locations = new HashMap<Integer, double[]>();
+   private final Map<Integer, String> storeNames = new HashMap<Integer, String>();
+
+   public synchronized void storesReloaded(List<List<String>> stores) {
+      locations.clear();
+      storeNames.clear();
+      for (List<String> store : stores) {
+         int storeID = Integer.parseInt(store.get(0).trim());
+         storeNames.put(storeID, store.get(1).trim());
+         locations.put(storeID, new double[] { Double.parseDouble(store.get(2)), Double.parseDouble(store.get(3)) });
+      }
+   }
+
+   public synchronized void productsReloaded(List<List<String>> products) {
+      stock.clear();
+      for (List<String> product : products) {
+         productChanged(product);
+      }
+   }
+
+   public synchronized void productChanged(List<String> product) {
+      setUnits(Integer.parseInt(product.get(0).trim()), product.get(1), Integer.parseInt(product.get(2).trim()));
+   }
+
+   /**
+    * Records the new stock of a product in a store.
+    *
+    * @param storeID the store
+    * @param productName the product
+    * @param numberOfUnits the units now in stock
+    */
+   public synchronized void setUnits(int storeID, String productName, int numberOfUnits) {
+      String key = key(productName);
+      Map<Integer, Integer> stores = stock.get(key);
+      if (stores == null) {
+         stores = new HashMap<Integer, Integer>();
+         stock.put(key, stores);
+      }
+      stores.put(storeID, numberOfUnits);
+   }
+
+   /**
+    * Adds (or with a negative delta removes) units of a product in a store.
+    * Unknown products are left for the next snapshot patch to bring in.
+    *
+    * @param storeID the store
+    * @param productName the product
+    * @param delta the change in units
+    */
+   public synchronized void addUnits(int storeID, String productName, int delta) {
+      Map<Integer, Integer> stores = stock.get(key(productName));
+      if (stores != null && stores.containsKey(storeID)) {
+         stores.put(storeID, Math.max(0, stores.get(storeID) + delta));
+      }
+   }
+
+   /**
+    * Moves a product of one store to a new name.
+    *
+    * @param storeID the store
+    * @param oldName the current product name
+    * @param newName the new product name
+    */
+   public synchronized void rename(int storeID, String oldName, String newName) {
+      Map<Integer, Integer> stores = stock.get(key(oldName));
+      if (stores == null || !stores.containsKey(storeID)) {
+         return;
+      }
+      int units = stores.remove(storeID);
+      if (stores.isEmpty()) {
+         stock.remove(key(oldName));
+      }
+      setUnits(storeID, newName, units);
+   }
+
+   /**
+    * Finds the k stores closest to a location that have the product in stock.
+    *
+    * @param productName the product to look for
+    * @param latitude the latitude to measure from
+    * @param longitude the longitude to measure from
+    * @param k the number of stores to return
+    * @return up to k stores, nearest first
+    */
+   public synchronized List<StoreStock> nearest(String productName, double latitude, double longitude, int k) {
+      Map<Integer, Integer> stores = stock.get(key(productName));
+      if (stores == null || k <= 0) {
+         return Collections.emptyList();
+      }
+      PriorityQueue<StoreStock> closest = new PriorityQueue<StoreStock>(k + 1, FARTHEST_FIRST);
+      for (Map.Entry<Integer, Integer> entry : stores.entrySet()) {
+         double[] location = locations.get(entry.getKey());
+         if (entry.getValue() <= 0 || location == null) {
+            continue;
+         }
+         double distance = Retail.calculateDistance(latitude, longitude, location[0], location[1]);
+         if (closest.size() < k || distance < closest.peek().distance) {
+            closest.add(new StoreStock(entry.getKey(), storeNames.get(entry.getKey()), entry.getValue(), distance));
+            if (closest.size() > k) {
+               closest.poll();
+            }
+         }
+      }
+      List<StoreStock> result = new ArrayList<StoreStock>(closest);
+      Collections.sort(result, Collections.reverseOrder(FARTHEST_FIRST));
+      return result;
+   }
+
+   private static String key(String productName) {
+      return productName.trim().toLowerCase();
+   }
+}//end InventoryIndex
@@ -0,0 +1,451 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class exports the historical tables (Orders, ProductUpdates and
+ * ProductSupplyRequests) into compressed columnar archive files and scans
+ * those files, so historical reports run off the database.
+ *
+ * Rows are streamed out through a server side cursor, one FETCH of
+ * BLOCK_ROWS rows at a time (the pg73jdbc3 driver shipped in lib supports
+ * neither COPY nor Statement.setFetchSize). They are cut into blocks of
+ * BLOCK_ROWS rows; inside a block every column is stored on its own:
+ * integers as zigzag varints, timestamps as varint deltas from the previous
+ * row, and product names as codes into a dictionary kept for the whole
+ * file. Each block is deflated and its per column min/max is kept in the
+ * footer so a scan can skip blocks that cannot match.
+ *
+ * File layout (big endian):
+ *   int magic, int format, blocks...,
+ *   footer: int columnCount, per column UTF name + byte type,
+ *           int dictionarySize, per entry UTF value,
+ *           int blockCount, per block long offset, int compressedLength,
+ *           int rawLength, int rowCount, per column long min + long max,
+ *   long footerOffset
+ */
+public class OrderArchive {
+   public static final byte INT = 0;
+   public static final byte TIME = 1;
+   public static final byte DICT = 2;
+
+   /**
+    * Receives the rows of a scan. Integers and timestamps (as epoch
+    * milliseconds) are Longs, dictionary columns are Strings.
+    */
+   public interface RowSink {
+      void row(Object[] values);
+   }
+
+   private static final int MAGIC = 0x52434f4c; // "RCOL"
+   private static final int FORMAT_VERSION = 1;
+   private static final int BLOCK_ROWS = 8192;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // archived tables: file name, table, ordering column, columns and their types
+   private static final String[][] TABLES = {
+      { "orders", "Orders", "orderNumber" },
+      { "productupdates", "ProductUpdates", "updateNumber" },
+      { "productsupplyrequests", "ProductSupplyRequests", "requestNumber" } };
+   private static final String[][] COLUMNS = {
+      { "orderNumber", "customerID", "storeID", "productName", "unitsOrdered", "orderTime" },
+      { "updateNumber", "managerID", "storeID", "productName", "updatedOn" },
+      { "requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested" } };
+   private static final byte[][] TYPES = {
+      { INT, INT, INT, DICT, INT, TIME },
+      { INT, INT, INT, DICT, TIME },
+      { INT, INT, INT, INT, DICT, INT } };
+
+   /**
+    * Exports every archived table into its own file in the given directory,
+    * replacing the previous archive. With a sharded catalog each file holds
+    * the rows of every shard, one shard after the other. The statements run
+    * on the shard connections of esql, so they count against the operation
+    * the caller has admitted; ARCHIVE_EXPORT caps each FETCH rather than the
+    * whole export.
+    *
+    * @param esql the Retail instance whose shard connections are used
+    * @param directory the archive directory
+    * @return one line per table with the rows and blocks written
+    * @throws java.sql.SQLException when failed to read a table
+    * @throws java.io.IOException when failed to write a file
+    */
+   public static List<String> export(Retail esql, File directory) throws SQLException, IOException {
+      List<String> summary = new ArrayList<String>();
+      directory.mkdirs();
+      for (int t = 0; t < TABLES.length; t++) {
+         File file = new File(directory, TABLES[t][0] + ".rcol");
+         File tmp = new File(directory, TABLES[t][0] + ".rcol.tmp");
+         StringBuilder columns = new StringBuilder();
+         for (int c = 0; c < COLUMNS[t].length; c++) {
+            columns.append(c == 0 ? "" : ", ").append(COLUMNS[t][c]);
+         }
+         String query = String.format("SELECT %s FROM %s ORDER BY %s", columns, TABLES[t][1], TABLES[t][2]);
+         Writer writer = new Writer(tmp, COLUMNS[t], TYPES[t]);
+         try {
+            for (int shard = 0; shard < esql.shards().count(); shard++) {
+               stream(esql, shard, query, writer);
+            }
+            writer.close();
+         } catch (IOException e) {
+            writer.abort();
+            throw e;
+         } catch (SQLException e) {
+            writer.abort();
+            throw e;
+         }
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         summary.add(String.format("%s: %d rows in %d blocks", TABLES[t][1], writer.totalRows, writer.blocks.size()));
+      }
+      return summary;
+   }
+
+   /**
+    * Scans an archive file, skipping every block whose min/max rules out a
+    * predicate. A predicate keeps the rows whose column lies in [lo, hi].
+    *
+    * @param file the archive file
+    * @param columns the predicate columns, by name
+    * @param lo the lowest value kept for each predicate column
+    * @param hi the highest value kept for each predicate column
+    * @param sink receives the rows that match every predicate
+    * @return the number of blocks read (the rest were skipped)
+    * @throws java.io.IOException when failed to read the file
+    */
+   public static int scan(File file, String[] columns, long[] lo, long[] hi, RowSink sink) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unrecognised archive format: " + file);
+         }
+         buffer.position((int) buffer.getLong((int) channel.size() - 8));
+         int numCol = buffer.getInt();
+         String[] names = new String[numCol];
+         byte[] types = new byte[numCol];
+         for (int c = 0; c < numCol; c++) {
+            names[c] = readString(buffer);
+            types[c] = buffer.get();
+         }
+         String[] dictionary = new String[buffer.getInt()];
+         for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(buffer);
+         }
+         int[] predicate = new int[columns.length];
+         for (int p = 0; p < columns.length; p++) {
+            predicate[p] = -1;
+            for (int c = 0; c < numCol; c++) {
+               if (names[c].equalsIgnoreCase(columns[p])) {
+                  predicate[p] = c;
+               }
+            }
+            if (predicate[p] < 0 || types[predicate[p]] == DICT) {
+               throw new IOException("cannot filter on column " + columns[p]);
+            }
+         }
+         int blockCount = buffer.getInt();
+         int blocksRead = 0;
+         for (int b = 0; b < blockCount; b++) {
+            long offset = buffer.getLong();
+            int compressedLength = buffer.getInt();
+            int rawLength = buffer.getInt();
+            int rowCount = buffer.getInt();
+            long[] min = new long[numCol];
+            long[] max = new long[numCol];
+            for (int c = 0; c < numCol; c++) {
+               min[c] = buffer.getLong();
+               max[c] = buffer.getLong();
+            }
+            boolean skip = false;
+            for (int p = 0; p < predicate.length; p++) {
+               skip |= max[predicate[p]] < lo[p] || min[predicate[p]] > hi[p];
+            }
+            if (skip) {
+               continue;
+            }
+            blocksRead++;
+            byte[] compressed = new byte[compressedLength];
+            int footerPosition = buffer.position();
+            buffer.position((int) offset);
+            buffer.get(compressed);
+            buffer.position(footerPosition);
+            readBlock(inflate(compressed, rawLength), rowCount, types, dictionary, predicate, lo, hi, sink);
+         }
+         return blocksRead;
+      } catch (RuntimeException e) {
+         // buffer underflow and friends mean a truncated file
+         throw new IOException("corrupt archive " + file + ": " + e);
+      } finally {
+         raf.close();
+      }
+   }
+
+   private static void readBlock(byte[] raw, int rowCount, byte[] types, String[] dictionary, int[] predicate, long[] lo, long[] hi, RowSink sink) {
+      int[] position = { 0 };
+      long[][] values = new long[types.length][rowCount];
+      for (int c = 0; c < types.length; c++) {
+         long previous = 0;
+         for (int r = 0; r < rowCount; r++) {
+            long value = unzigzag(readVarint(raw, position));
+            if (types[c] == TIME) {
+               value += previous;
+               previous = value;
+            }
+            values[c][r] = value;
+         }
+      }
+      for (int r = 0; r < rowCount; r++) {
+         boolean keep = true;
+         for (int p = 0; p < predicate.length && keep; p++) {
+            keep = values[predicate[p]][r] >= lo[p] && values[predicate[p]][r] <= hi[p];
+         }
+         if (!keep) {
+            continue;
+         }
+         Object[] row = new Object[types.length];
+         for (int c = 0; c < types.length; c++) {
+            row[c] = types[c] == DICT ? (Object) dictionary[(int) values[c][r]] : (Object) values[c][r];
+         }
+         sink.row(row);
+      }
+   }
+
+   /*
+    * Streams the rows of a query on one shard into the writer through a server side cursor,
+    * BLOCK_ROWS rows per FETCH, so only one block is held in memory at a time
+    **/
+   private static void stream(Retail esql, int shard, String query, Writer writer) throws SQLException, IOException {
+      // a cursor lives inside a transaction
+      Connection connection = esql.shards().connection(shard);
+      connection.setAutoCommit(false);
+      try {
+         esql.executeUpdate(shard, String.format("DECLARE archive_rows NO SCROLL CURSOR FOR %s", query));
+         List<List<String>> rows;
+         do {
+            rows = esql.executeQueryAndReturnResult(shard, String.format("FETCH %d FROM archive_rows", BLOCK_ROWS));
+            for (List<String> row : rows) {
+               writer.add(row.toArray(new String[row.size()]));
+            }
+         } while (rows.size() == BLOCK_ROWS);
+         connection.commit();
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(true);
+      }
+   }
+
+   /*
+    * Builds an archive file block by block
+    **/
+   private static class Writer {
+      final byte[] types;
+      final String[] names;
+      final File file;
+      final DataOutputStream out;
+      long offset = 0;
+      int totalRows = 0;
+      // the block being filled, one column at a time
+      final long[][] values;
+      int rows = 0;
+      final Map<String, Integer> codes = new HashMap<String, Integer>();
+      final List<String> dictionary = new ArrayList<String>();
+      final List<long[]> blocks = new ArrayList<long[]>(); // offset, compressedLength, rawLength, rowCount, min/max...
+
+      Writer(File file, String[] names, byte[] types) throws IOException {
+         this.file = file;
+         this.names = names;
+         this.types = types;
+         this.values = new long[types.length][BLOCK_ROWS];
+         this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         offset = 8;
+      }
+
+      void add(String[] record) throws IOException {
+         for (int c = 0; c < types.length; c++) {
+            values[c][rows] = encode(types[c], record[c]);
+         }
+         rows++;
+         totalRows++;
+         if (rows == BLOCK_ROWS) {
+            flushBlock();
+         }
+      }
+
+      long encode(byte type, String value) throws IOException {
+         if (value == null) {
+            throw new IOException("archived columns cannot be null");
+         }
+         switch (type) {
+            case INT: return Long.parseLong(value.trim());
+            case TIME: return Timestamp.valueOf(value.trim()).getTime();
+            default:
+               String name = value.trim();
+               Integer code = codes.get(name);
+               if (code == null) {
+                  code = dictionary.size();
+                  codes.put(name, code);
+                  dictionary.add(name);
+               }
+               return code;
+         }
+      }
+
+      void flushBlock() throws IOException {
+         if (rows == 0) {
+            return;
+         }
+         ByteArrayOutputStream raw = new ByteArrayOutputStream();
+         long[] block = new long[4 + 2 * types.length];
+         for (int c = 0; c < types.length; c++) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            long previous = 0;
+            for (int r = 0; r < rows; r++) {
+               long value = values[c][r];
+               min = Math.min(min, value);
+               max = Math.max(max, value);
+               writeVarint(raw, zigzag(types[c] == TIME ? value - previous : value));
+               previous = value;
+            }
+            block[4 + 2 * c] = min;
+            block[5 + 2 * c] = max;
+         }
+         byte[] bytes = raw.toByteArray();
+         Deflater deflater = new Deflater();
+         deflater.setInput(bytes);
+         deflater.finish();
+         byte[] chunk = new byte[8192];
+         int compressedLength = 0;
+         while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+            compressedLength += n;
+         }
+         deflater.end();
+         block[0] = offset;
+         block[1] = compressedLength;
+         block[2] = bytes.length;
+         block[3] = rows;
+         blocks.add(block);
+         offset += compressedLength;
+         rows = 0;
+      }
+
+      void close() throws IOException {
+         flushBlock();
+         long footer = offset;
+         out.writeInt(types.length);
+         for (int c = 0; c < types.length; c++) {
+            out.writeUTF(names[c]);
+            out.writeByte(types[c]);
+         }
+         out.writeInt(dictionary.size());
+         for (String value : dictionary) {
+            out.writeUTF(value);
+         }
+         out.writeInt(blocks.size());
+         for (long[] block : blocks) {
+            out.writeLong(block[0]);
+            out.writeInt((int) block[1]);
+            out.writeInt((int) block[2]);
+            out.writeInt((int) block[3]);
+            for (int i = 4; i < block.length; i++) {
+               out.writeLong(block[i]);
+            }
+         }
+         out.writeLong(footer);
+         out.close();
+      }
+
+      void abort() {
+         try {
+            out.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+         file.delete();
+      }
+   }
+
+   private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+      Inflater inflater = new Inflater();
+      inflater.setInput(compressed);
+      byte[] raw = new byte[rawLength];
+      try {
+         int n = 0;
+         while (n < rawLength && !inflater.finished()) {
+            n += inflater.inflate(raw, n, rawLength - n);
+         }
+      } catch (DataFormatException e) {
+         throw new IOException(e);
+      } finally {
+         inflater.end();
+      }
+      return raw;
+   }
+
+   private static long zigzag(long value) {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   private static long unzigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   private static void writeVarint(ByteArrayOutputStream out, long value) {
+      while ((value & ~0x7fL) != 0) {
+         out.write((int) ((value & 0x7f) | 0x80));
+         value >>>= 7;
+      }
+      out.write((int) value);
+   }
+
+   private static long readVarint(byte[] raw, int[] position) {
+      long value = 0;
+      int shift = 0;
+      while (true) {
+         byte b = raw[position[0]++];
+         value |= (long) (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+         shift += 7;
+      }
+   }
+
+   // reads a string written with DataOutputStream.writeUTF
+   private static String readString(MappedByteBuffer buffer) throws IOException {
+      int length = buffer.getShort() & 0xffff;
+      byte[] bytes = new byte[length + 2];
+      bytes[0] = (byte) (length >> 8);
+      bytes[1] = (byte) length;
+      buffer.get(bytes, 2, length);
+      return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+   }
+}//end OrderArchive
@@ -0,0 +1,386 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class keeps an in-memory search index over the product names of
+ * every store: a trie for prefix lookups and a trigram index to find
+ * candidates for typo tolerant lookups, which are then confirmed with an
+ * edit distance check.
+ *
+ * Like the InventoryIndex it is fed by the ReferenceSnapshot and by this
+ * process' own writes, so it follows inserts and renames incrementally.
+ * Results are ranked by how well they match, then by the distance to the
+ * nearest store with the product in stock and by how many units have been
+ * ordered; every prefix match is ranked while the trie is walked, keeping
+ * only the best few in a bounded heap. The units ordered are a full history
+ * aggregate over Orders, so they are loaded on a background thread with its
+ * own connections, outside any interactive deadline, and counted up by
+ * placeOrder from then on; until they are loaded, results are ranked by
+ * distance alone.
+ */
+public class ProductSearchIndex implements ReferenceSnapshot.Listener {
+   private static final int MAX_FUZZY_CHECKS = 200;
+   // how many distance units one e-fold of popularity is worth when ranking
+   private static final double POPULARITY_WEIGHT = 5.0;
+
+   /**
+    * One product returned by search().
+    */
+   public static class Match {
+      public final String productName;
+      public final int editDistance;
+      public final InventoryIndex.StoreStock nearestStore; // null when no store has it in stock
+      public final long unitsOrdered; // -1 while the counts are still loading
+      final double score;
+
+      Match(String productName, int editDistance, InventoryIndex.StoreStock nearestStore, long unitsOrdered) {
+         this.productName = productName;
+         this.editDistance = editDistance;
+         this.nearestStore = nearestStore;
+         this.unitsOrdered = unitsOrdered;
+         double distance = nearestStore == null ? Double.MAX_VALUE : nearestStore.distance;
+         this.score = distance - POPULARITY_WEIGHT * Math.log1p(Math.max(unitsOrdered, 0));
+      }
+   }
+
+   private static final Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+      public int compare(Match a, Match b) {
+         if (a.editDistance != b.editDistance) {
+            return a.editDistance - b.editDistance;
+         }
+         return Double.compare(a.score, b.score);
+      }
+   };
+   // worst first, so the head of a bounded queue is the one to drop
+   private static final Comparator<Match> WORST_FIRST = Collections.reverseOrder(BEST_FIRST);
+
+   private static class Node {
+      Map<Character, Node> children = new TreeMap<Character, Node>();
+      String productName = null; // set on the node that ends a name
+   }
+
+   private final InventoryIndex inventory;
+   private Node root = new Node();
+   // name key -> stores carrying it; a name leaves the index when its last store drops it
+   private final Map<String, Set<Integer>> carriers = new HashMap<String, Set<Integer>>();
+   // trigram -> name keys containing it
+   private final Map<String, Set<String>> trigrams = new HashMap<String, Set<String>>();
+   private Map<String, Long> popularity = null;
+   private boolean popularityLoading = false;
+
+   public ProductSearchIndex(InventoryIndex inventory) {
+      this.inventory = inventory;
+   }
+
+   public void storesReloaded(List<List<String>> stores) {
+      // distances come from the inventory index
+   }
+
+   public synchronized void productsReloaded(List<List<String>> products) {
+      root = new Node();
+      carriers.clear();
+      trigrams.clear();
+      for (List<String> product : products) {
+         productChanged(product);
+      }
+   }
+
+   public synchronized void productChanged(List<String> product) {
+      add(Integer.parseInt(product.get(0).trim()), product.get(1));
+   }
+
+   /**
+    * Records that a store carries a product.
+    *
+    * @param storeID the store
+    * @param productName the product
+    */
+   public synchronized void add(int storeID, String productName) {
+      String key = key(productName);
+      Set<Integer> stores = carriers.get(key);
+      if (stores == null) {
+         stores = new HashSet<Integer>();
+         carriers.put(key, stores);
+         insert(key, productName.trim());
+      }
+      stores.add(storeID);
+   }
+
+   /**
+    * Moves a product of one store to a new name.
+    *
+    * @param storeID the store
+    * @param oldName the current product name
+    * @param newName the new product name
+    */
+   public synchronized void rename(int storeID, String oldName, String newName) {
+      String key = key(oldName);
+      Set<Integer> stores = carriers.get(key);
+      if (stores != null && stores.remove(storeID) && stores.isEmpty()) {
+         carriers.remove(key);
+         remove(key);
+      }
+      add(storeID, newName);
+   }
+
+   /**
+    * Counts units ordered towards a product's popularity.
+    *
+    * @param productName the product
+    * @param units the units ordered
+    */
+   public synchronized void addUnitsOrdered(String productName, long units) {
+      if (popularity != null) {
+         Long current = popularity.get(key(productName));
+         popularity.put(key(productName), (current == null ? 0 : current) + units);
+      }
+   }
+
+   /**
+    * Finds the products whose name starts with, or is within a few typos of,
+    * the query.
+    *
+    * @param esql used to load the popularity counts if they are not loaded yet
+    * @param query the text typed by the user
+    * @param latitude the latitude distances are measured from
+    * @param longitude the longitude distances are measured from
+    * @param limit the number of products to return
+    * @return up to limit products, best first
+    */
+   public List<Match> search(Retail esql, String query, double latitude, double longitude, int limit) {
+      loadPopularity(esql);
+      String q = key(query);
+      if (q.length() == 0 || limit <= 0) {
+         return Collections.emptyList();
+      }
+      PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, WORST_FIRST);
+      synchronized (this) {
+         // exact prefix matches
+         Node node = root;
+         for (int i = 0; i < q.length() && node != null; i++) {
+            node = node.children.get(q.charAt(i));
+         }
+         if (node != null) {
+            collect(node, latitude, longitude, limit, best);
+         }
+         // typo tolerant matches, compared against the whole name and against its prefix of the same length
+         int maxEdits = q.length() <= 4 ? 1 : 2;
+         for (String candidate : fuzzyCandidates(q)) {
+            if (candidate.startsWith(q)) {
+               continue; // already ranked as a prefix match
+            }
+            int distance = Math.min(editDistance(q, candidate), editDistance(q, candidate.substring(0, Math.min(candidate.length(), q.length()))));
+            if (distance <= maxEdits) {
+               offer(best, match(candidate, displayName(candidate), distance, latitude, longitude), limit);
+            }
+         }
+      }
+      List<Match> matches = new ArrayList<Match>(best);
+      Collections.sort(matches, BEST_FIRST);
+      return matches;
+   }
+
+   /**
+    * Starts loading the popularity counts on a daemon thread unless they are
+    * loaded or loading already. A failed load is retried on the next call.
+    *
+    * @param esql the Retail instance whose shards are read
+    */
+   public void loadPopularity(final Retail esql) {
+      synchronized (this) {
+         if (popularity != null || popularityLoading) {
+            return;
+         }
+         popularityLoading = true;
+      }
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            Map<String, Long> counts = null;
+            try {
+               counts = readPopularity(esql);
+            } catch (SQLException e) {
+               System.err.println("Unable to load product popularity: " + e.getMessage());
+            }
+            synchronized (ProductSearchIndex.this) {
+               popularityLoading = false;
+               if (popularity == null) {
+                  popularity = counts;
+               }
+            }
+         }
+      }, "search-popularity");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   private static Map<String, Long> readPopularity(Retail esql) throws SQLException {
+      // every shard holds part of the orders; the partial sums are added up
+      Map<String, Long> counts = new HashMap<String, Long>();
+      for (int shard = 0; shard < esql.shards().count(); shard++) {
+         Connection connection = esql.shards().open(shard);
+         try {
+            Statement stmt = connection.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT productName, SUM(unitsOrdered) FROM Orders GROUP BY productName");
+            while (rs.next()) {
+               String key = key(rs.getString(1));
+               Long current = counts.get(key);
+               counts.put(key, (current == null ? 0 : current) + rs.getLong(2));
+            }
+            stmt.close();
+         } finally {
+            connection.close();
+         }
+      }
+      return counts;
+   }
+
+   private void collect(Node node, double latitude, double longitude, int limit, PriorityQueue<Match> best) {
+      if (node.productName != null) {
+         offer(best, match(key(node.productName), node.productName, 0, latitude, longitude), limit);
+      }
+      for (Node child : node.children.values()) {
+         collect(child, latitude, longitude, limit, best);
+      }
+   }
+
+   private Match match(String key, String productName, int editDistance, double latitude, double longitude) {
+      List<InventoryIndex.StoreStock> nearest = inventory.nearest(key, latitude, longitude, 1);
+      Long counted = popularity == null ? null : popularity.get(key);
+      long units = popularity == null ? -1 : counted == null ? 0 : counted;
+      return new Match(productName, editDistance, nearest.isEmpty() ? null : nearest.get(0), units);
+   }
+
+   private static void offer(PriorityQueue<Match> best, Match match, int limit) {
+      if (best.size() < limit || BEST_FIRST.compare(match, best.peek()) < 0) {
+         best.add(match);
+         if (best.size() > limit) {
+            best.poll();
+         }
+      }
+   }
+
+   /*
+    * Returns the names sharing the most trigrams with the query
+    **/
+   private List<String> fuzzyCandidates(String q) {
+      final Map<String, Integer> shared = new HashMap<String, Integer>();
+      for (String gram : grams(q)) {
+         Set<String> keys = trigrams.get(gram);
+         if (keys == null) {
+            continue;
+         }
+         for (String key : keys) {
+            Integer count = shared.get(key);
+            shared.put(key, count == null ? 1 : count + 1);
+         }
+      }
+      List<String> candidates = new ArrayList<String>(shared.keySet());
+      Collections.sort(candidates, new Comparator<String>() {
+         public int compare(String a, String b) {
+            return shared.get(b) - shared.get(a);
+         }
+      });
+      return candidates.size() > MAX_FUZZY_CHECKS ? candidates.subList(0, MAX_FUZZY_CHECKS) : candidates;
+   }
+
+   private void insert(String key, String productName) {
+      Node node = root;
+      for (int i = 0; i < key.length(); i++) {
+         Node child = node.children.get(key.charAt(i));
+         if (child == null) {
+            child = new Node();
+            node.children.put(key.charAt(i), child);
+         }
+         node = child;
+      }
+      node.productName = productName;
+      for (String gram : grams(key)) {
+         Set<String> keys = trigrams.get(gram);
+         if (keys == null) {
+            keys = new HashSet<String>();
+            trigrams.put(gram, keys);
+         }
+         keys.add(key);
+      }
+   }
+
+   private void remove(String key) {
+      // path[i] is the node reached after i characters
+      Node[] path = new Node[key.length() + 1];
+      path[0] = root;
+      for (int i = 0; i < key.length() && path[i] != null; i++) {
+         path[i + 1] = path[i].children.get(key.charAt(i));
+      }
+      if (path[key.length()] != null) {
+         path[key.length()].productName = null;
+         // drop the nodes that no longer lead to a name, deepest first
+         for (int i = key.length(); i > 0 && path[i].productName == null && path[i].children.isEmpty(); i--) {
+            path[i - 1].children.remove(key.charAt(i - 1));
+         }
+      }
+      for (String gram : grams(key)) {
+         Set<String> keys = trigrams.get(gram);
+         if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+               trigrams.remove(gram);
+            }
+         }
+      }
+   }
+
+   private String displayName(String key) {
+      Node node = root;
+      for (int i = 0; i < key.length() && node != null; i++) {
+         node = node.children.get(key.charAt(i));
+      }
+      return node == null || node.productName == null ? key : node.productName;
+   }
+
+   // trigrams of the name padded the way pg_trgm does, so short names still produce grams
+   private static Set<String> grams(String key) {
+      String padded = "  " + key + " ";
+      Set<String> result = new HashSet<String>();
+      for (int i = 0; i + 3 <= padded.length(); i++) {
+         result.add(padded.substring(i, i + 3));
+      }
+      return result;
+   }
+
+   // optimal string alignment distance: insertions, deletions, substitutions and swaps of adjacent letters
+   private static int editDistance(String a, String b) {
+      int[][] d = new int[a.length() + 1][b.length() + 1];
+      for (int i = 0; i <= a.length(); i++) {
+         d[i][0] = i;
+      }
+      for (int j = 0; j <= b.length(); j++) {
+         d[0][j] = j;
+      }
+      for (int i = 1; i <= a.length(); i++) {
+         for (int j = 1; j <= b.length(); j++) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            d[i][j] = Math.min(Math.min(d[i][j - 1] + 1, d[i - 1][j] + 1), d[i - 1][j - 1] + cost);
+            if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+               d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+            }
+         }
+      }
+      return d[a.length()][b.length()];
+   }
+
+   private static String key(String productName) {
+      return productName.trim().toLowerCase();
+   }
+}//end ProductSearchIndex
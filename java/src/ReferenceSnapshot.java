@@ -0,0 +1,541 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps a versioned on-disk snapshot of the reference data
+ * (Store and the Product catalog) so that a new Retail process starts with
+ * a warm cache instead of paying database latency on the first viewStores
+ * or viewProducts.
+ *
+ * The snapshot file is read through a read-only memory mapping at start-up
+ * and then checked against the database with a single version query:
+ *  - Store carries a statement-level version sequence; when it moves the
+ *    whole table is reloaded on next access.
+ *  - Product rows carry a changeNumber taken from product_change_seq; when
+ *    the highest changeNumber moves only the rows above the snapshot's mark
+ *    are re-read and patched in. Deletes and renames bump product_rekey_seq
+ *    and force a full reload of the catalog.
+ *
+ * Change numbers are drawn before commit, so a transaction can commit a
+ * lower number after a higher one was already read. The mark therefore only
+ * moves up to a sequence value once every transaction that could hold a
+ * number at or below it has finished: each check records the sequence value
+ * of the previous check with the current snapshot's xmax, and the pair is
+ * released once a later snapshot's xmin has passed that xmax. Until then
+ * the rows above the mark are re-read on every check.
+ *
+ * When the catalog is sharded (see ShardRouter) the product versions are
+ * kept per shard and the version query runs on every shard;
+ * Store is replicated and versioned on shard 0 only, and a rekey on one
+ * shard only reloads that shard's stores.
+ *
+ * The version sequences restart when the tables are recreated, so the
+ * snapshot also keeps the random epoch stored in each shard's DatabaseEpoch
+ * row and starts over cold when one of them no longer matches.
+ *
+ * Reads are served from memory only. The versions are re-checked every
+ * REVALIDATE_MILLIS on a daemon thread with its own connections, so stock
+ * counts served from here may lag other processes by that long. Order
+ * placement always goes to the database and is guarded by the Product CHECK
+ * constraint.
+ */
+public class ReferenceSnapshot {
+   /**
+    * Receives the changes applied to the snapshot so derived in-memory
+    * indexes can follow them without rescanning the catalog.
+    */
+   public interface Listener {
+      /**
+       * @param stores every store, called on registration and whenever Store is reloaded
+       */
+      void storesReloaded(List<List<String>> stores);
+
+      /**
+       * @param products every product, called on registration and whenever Product is reloaded
+       */
+      void productsReloaded(List<List<String>> products);
+
+      /**
+       * @param product one product row patched in from the database
+       */
+      void productChanged(List<String> product);
+   }
+
+   private static final int MAGIC = 0x52534e50; // "RSNP"
+   private static final int FORMAT_VERSION = 5;
+   private static final long REVALIDATE_MILLIS = 5000;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // positions in the version vector; the product versions repeat for each shard
+   private static final int STORE = 0;
+   private static final int PRODUCT_REKEY = 1;
+   private static final int PRODUCT_LSN = 2;
+
+   private static final String VERSION_QUERY =
+      "SELECT (SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM store_version_seq), " +
+      "(SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM product_rekey_seq), " +
+      "(SELECT COALESCE(MAX(changeNumber), 0) FROM Product), " +
+      "(SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM product_change_seq), " +
+      "txid_snapshot_xmin(txid_current_snapshot()), txid_snapshot_xmax(txid_current_snapshot()), " +
+      "(SELECT epoch FROM DatabaseEpoch)";
+   // positions in a row of VERSION_QUERY past the version vector
+   private static final int CHANGE_SEQUENCE = 3;
+   private static final int SNAPSHOT_XMIN = 4;
+   private static final int SNAPSHOT_XMAX = 5;
+   private static final int EPOCH = 6;
+   private static final String PRODUCT_COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+   private final Retail esql;
+   private final File file;
+   // one connection per shard for the revalidator, opened on first use; empty when disconnected
+   private final List<Connection> connections = new ArrayList<Connection>();
+   private boolean closed = false;
+
+   // versions the in-memory data was taken at (-1 when never loaded), and the latest seen in the database;
+   // for products the first is the mark every change at or below which is known to be loaded
+   private long[] versions;
+   private long[] dbVersions;
+   // DatabaseEpoch of each shard the versions belong to (-1 when never loaded)
+   private long[] epochs;
+   // per shard: the highest changeNumber read, the product_change_seq value at the last check,
+   // and (sequence value, xmax) pairs waiting for their transactions to finish
+   private long[] seenChange;
+   private long[] lastSequence;
+   private List<LinkedList<long[]>> inFlight = new ArrayList<LinkedList<long[]>>();
+   private long lastValidated = 0;
+   private boolean dirty = false;
+
+   private List<List<String>> stores = new ArrayList<List<String>>();
+   // storeID -> (productName -> [storeID, productName, numberOfUnits, pricePerUnit])
+   private Map<String, Map<String, List<String>>> products = new LinkedHashMap<String, Map<String, List<String>>>();
+   private List<Listener> listeners = new ArrayList<Listener>();
+
+   private ReferenceSnapshot(Retail esql, File file) {
+      this.esql = esql;
+      this.file = file;
+      this.dbVersions = new long[1 + 2 * esql.shards().count()];
+      reset();
+   }
+
+   // position of a product version of a shard in the version vector
+   private static int productVersion(int position, int shard) {
+      return position + 2 * shard;
+   }
+
+   /**
+    * Opens the snapshot stored in the given file, falling back to an empty
+    * snapshot when the file is missing or unreadable. The versions are checked
+    * once against the database before returning, and then in the background.
+    *
+    * @param esql the Retail instance whose shards the snapshot is read from
+    * @param file the snapshot file
+    * @return the opened snapshot
+    */
+   public static ReferenceSnapshot open(Retail esql, File file) {
+      final ReferenceSnapshot snapshot = new ReferenceSnapshot(esql, file);
+      try {
+         if (file.exists()) {
+            snapshot.load();
+         }
+      } catch (IOException e) {
+         // a missing or corrupt snapshot only means a cold start
+         snapshot.reset();
+      }
+      synchronized (snapshot) {
+         try {
+            snapshot.revalidate();
+         } catch (SQLException e) {
+            System.err.println("Unable to validate reference snapshot: " + e.getMessage());
+            snapshot.disconnect();
+         }
+      }
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            snapshot.revalidateLoop();
+         }
+      }, "snapshot-revalidator");
+      thread.setDaemon(true);
+      thread.start();
+      return snapshot;
+   }
+
+   /**
+    * @return all stores as rows of (storeID, name, latitude, longitude, managerID, dateEstablished)
+    */
+   public synchronized List<List<String>> stores() {
+      return Collections.unmodifiableList(stores);
+   }
+
+   /**
+    * @param storeID the store to list
+    * @return the products of one store as rows of (storeID, productName, numberOfUnits, pricePerUnit)
+    */
+   public synchronized List<List<String>> products(String storeID) {
+      Map<String, List<String>> storeProducts = products.get(storeID.trim());
+      if (storeProducts == null) {
+         return Collections.emptyList();
+      }
+      return new ArrayList<List<String>>(storeProducts.values());
+   }
+
+   /**
+    * Registers a listener and hands it the current stores and products.
+    *
+    * @param listener the listener to register
+    */
+   public synchronized void addListener(Listener listener) {
+      listeners.add(listener);
+      listener.storesReloaded(Collections.unmodifiableList(stores));
+      listener.productsReloaded(productList());
+   }
+
+   /**
+    * Asks the revalidator to check the versions now instead of at its next
+    * interval. Called after this process writes to a reference table so its
+    * own changes show up in the snapshot soon.
+    */
+   public synchronized void touch() {
+      lastValidated = 0;
+      notifyAll();
+   }
+
+   /**
+    * Stops the revalidator and writes the snapshot back to disk if it
+    * changed since it was loaded.
+    */
+   public synchronized void close() {
+      closed = true;
+      notifyAll();
+      disconnect();
+      if (!dirty) {
+         return;
+      }
+      try {
+         save();
+      } catch (IOException e) {
+         System.err.println("Unable to save reference snapshot: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Body of the revalidator thread: revalidates every REVALIDATE_MILLIS, or
+    * sooner after touch(), until the snapshot is closed. A failed check
+    * drops the connections and is retried at the next interval.
+    */
+   private synchronized void revalidateLoop() {
+      while (!closed) {
+         long wait = lastValidated + REVALIDATE_MILLIS - System.currentTimeMillis();
+         if (wait > 0) {
+            try {
+               wait(wait);
+            } catch (InterruptedException e) {
+               disconnect();
+               return;
+            }
+            continue;
+         }
+         try {
+            revalidate();
+         } catch (SQLException e) {
+            System.err.println("Unable to validate reference snapshot: " + e.getMessage());
+            disconnect();
+            lastValidated = System.currentTimeMillis();
+         }
+      }
+   }
+
+   /*
+    * Reads the current versions in one round trip per shard and brings
+    * every table that moved up to date.
+    */
+   private void revalidate() throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int shard = 0; shard < esql.shards().count(); shard++) {
+         rows.add(query(shard, VERSION_QUERY).get(0));
+      }
+      for (int shard = 0; shard < rows.size(); shard++) {
+         if (Long.parseLong(rows.get(shard).get(EPOCH).trim()) != epochs[shard]) {
+            // a shard was recreated (or never seen): its versions may match again by accident, so start over
+            reset();
+            for (int i = 0; i < rows.size(); i++) {
+               epochs[i] = Long.parseLong(rows.get(i).get(EPOCH).trim());
+            }
+            break;
+         }
+      }
+      dbVersions[STORE] = Long.parseLong(rows.get(0).get(STORE).trim());
+      for (int shard = 0; shard < rows.size(); shard++) {
+         dbVersions[productVersion(PRODUCT_REKEY, shard)] = Long.parseLong(rows.get(shard).get(PRODUCT_REKEY).trim());
+         dbVersions[productVersion(PRODUCT_LSN, shard)] = Long.parseLong(rows.get(shard).get(PRODUCT_LSN).trim());
+      }
+      boolean reloaded = false;
+      if (dbVersions[STORE] != versions[STORE]) {
+         stores = query(0, "SELECT * FROM Store ORDER BY storeID");
+         versions[STORE] = dbVersions[STORE];
+         reloaded = true;
+         for (Listener listener : listeners) {
+            listener.storesReloaded(Collections.unmodifiableList(stores));
+         }
+      }
+      boolean productsReloaded = false;
+      for (int shard = 0; shard < rows.size(); shard++) {
+         int rekey = productVersion(PRODUCT_REKEY, shard);
+         int lsn = productVersion(PRODUCT_LSN, shard);
+         long sequence = Long.parseLong(rows.get(shard).get(CHANGE_SEQUENCE).trim());
+         // the previous check read its sequence value before this snapshot was taken, so every
+         // transaction holding a number up to it has a transaction id below this snapshot's xmax
+         if (lastSequence[shard] >= 0) {
+            inFlight.get(shard).add(new long[] { lastSequence[shard], Long.parseLong(rows.get(shard).get(SNAPSHOT_XMAX).trim()) });
+         }
+         lastSequence[shard] = sequence;
+         if (dbVersions[rekey] != versions[rekey]) {
+            removeProducts(shard);
+            patchProducts(shard, String.format("SELECT %s, changeNumber FROM Product", PRODUCT_COLUMNS), false);
+            versions[rekey] = dbVersions[rekey];
+            productsReloaded = true;
+         } else if (dbVersions[lsn] != seenChange[shard] || versions[lsn] < seenChange[shard]) {
+            patchProducts(shard, String.format("SELECT %s, changeNumber FROM Product WHERE changeNumber > %d", PRODUCT_COLUMNS, versions[lsn]), true);
+            dirty = true;
+         }
+         // every change up to a released sequence value has committed or rolled back and was read above
+         long xmin = Long.parseLong(rows.get(shard).get(SNAPSHOT_XMIN).trim());
+         LinkedList<long[]> waiting = inFlight.get(shard);
+         while (!waiting.isEmpty() && waiting.getFirst()[1] <= xmin) {
+            long released = waiting.removeFirst()[0];
+            if (released > versions[lsn]) {
+               versions[lsn] = released;
+               dirty = true;
+            }
+         }
+      }
+      if (productsReloaded) {
+         reloaded = true;
+         for (Listener listener : listeners) {
+            listener.productsReloaded(productList());
+         }
+      }
+      lastValidated = System.currentTimeMillis();
+      if (reloaded) {
+         dirty = true;
+         try {
+            save();
+         } catch (IOException e) {
+            System.err.println("Unable to save reference snapshot: " + e.getMessage());
+         }
+      }
+   }
+
+   private void patchProducts(int shard, String query, boolean notify) throws SQLException {
+      List<List<String>> changed = query(shard, query);
+      long seen = dbVersions[productVersion(PRODUCT_LSN, shard)];
+      for (List<String> record : changed) {
+         seen = Math.max(seen, Long.parseLong(record.get(4).trim()));
+         List<String> product = new ArrayList<String>(record.subList(0, 4));
+         putProduct(product);
+         if (notify) {
+            for (Listener listener : listeners) {
+               listener.productChanged(product);
+            }
+         }
+      }
+      seenChange[shard] = seen;
+   }
+
+   private List<List<String>> query(int shard, String query) throws SQLException {
+      if (connections.isEmpty()) {
+         for (int i = 0; i < esql.shards().count(); i++) {
+            connections.add(esql.shards().open(i));
+         }
+      }
+      Statement stmt = connections.get(shard).createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i) {
+               record.add(rs.getString(i));
+            }
+            result.add(record);
+         }
+         return result;
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private void disconnect() {
+      for (Connection connection : connections) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // the connection is being dropped anyway
+         }
+      }
+      connections.clear();
+   }
+
+   private void removeProducts(int shard) {
+      for (Iterator<String> it = products.keySet().iterator(); it.hasNext(); ) {
+         if (esql.shards().shardOf(it.next()) == shard) {
+            it.remove();
+         }
+      }
+   }
+
+   private List<List<String>> productList() {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Map<String, List<String>> storeProducts : products.values()) {
+         result.addAll(storeProducts.values());
+      }
+      return result;
+   }
+
+   private void putProduct(List<String> record) {
+      String storeID = record.get(0).trim();
+      Map<String, List<String>> storeProducts = products.get(storeID);
+      if (storeProducts == null) {
+         storeProducts = new LinkedHashMap<String, List<String>>();
+         products.put(storeID, storeProducts);
+      }
+      storeProducts.put(record.get(1), record);
+   }
+
+   private void reset() {
+      int shards = esql.shards().count();
+      versions = new long[dbVersions.length];
+      Arrays.fill(versions, -1);
+      epochs = new long[shards];
+      Arrays.fill(epochs, -1);
+      seenChange = new long[shards];
+      Arrays.fill(seenChange, -1);
+      lastSequence = new long[shards];
+      Arrays.fill(lastSequence, -1);
+      inFlight.clear();
+      for (int shard = 0; shard < shards; shard++) {
+         inFlight.add(new LinkedList<long[]>());
+      }
+      stores = new ArrayList<List<String>>();
+      products.clear();
+   }
+
+   /*
+    * Snapshot layout (big endian):
+    *   int magic, int format, int versionCount, long[versionCount] versions, long[shards] epochs,
+    *   then the store and product tables, each as
+    *   int rowCount, and per row: int columnCount, per column int length (-1 for null) + UTF-8 bytes
+    */
+   private void load() throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("unrecognised snapshot format");
+         }
+         if (buffer.getInt() != versions.length) {
+            // taken with a different number of shards
+            throw new IOException("snapshot does not match the shards");
+         }
+         for (int i = 0; i < versions.length; i++) {
+            versions[i] = buffer.getLong();
+         }
+         for (int i = 0; i < epochs.length; i++) {
+            epochs[i] = buffer.getLong();
+         }
+         stores = readTable(buffer);
+         for (List<String> record : readTable(buffer)) {
+            putProduct(record);
+         }
+      } catch (RuntimeException e) {
+         // buffer underflow and friends mean a truncated file
+         throw new IOException("corrupt snapshot: " + e);
+      } finally {
+         raf.close();
+      }
+   }
+
+   private static List<List<String>> readTable(MappedByteBuffer buffer) {
+      int rowCount = buffer.getInt();
+      List<List<String>> table = new ArrayList<List<String>>(rowCount);
+      for (int r = 0; r < rowCount; r++) {
+         int numCol = buffer.getInt();
+         List<String> record = new ArrayList<String>(numCol);
+         for (int c = 0; c < numCol; c++) {
+            int length = buffer.getInt();
+            if (length < 0) {
+               record.add(null);
+            } else {
+               byte[] bytes = new byte[length];
+               buffer.get(bytes);
+               record.add(new String(bytes, UTF8));
+            }
+         }
+         table.add(record);
+      }
+      return table;
+   }
+
+   private void save() throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         out.writeInt(versions.length);
+         for (int i = 0; i < versions.length; i++) {
+            out.writeLong(versions[i]);
+         }
+         for (int i = 0; i < epochs.length; i++) {
+            out.writeLong(epochs[i]);
+         }
+         writeTable(out, stores);
+         writeTable(out, productList());
+      } finally {
+         out.close();
+      }
+      // readers never see a half written snapshot
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      dirty = false;
+   }
+
+   private static void writeTable(DataOutputStream out, List<List<String>> table) throws IOException {
+      out.writeInt(table.size());
+      for (List<String> record : table) {
+         out.writeInt(record.size());
+         for (String value : record) {
+            if (value == null) {
+               out.writeInt(-1);
+            } else {
+               byte[] bytes = value.getBytes(UTF8);
+               out.writeInt(bytes.length);
+               out.write(bytes);
+            }
+         }
+      }
+   }
+}//end ReferenceSnapshot
@@ -0,0 +1,331 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class restocks stores automatically when an order takes a product
+ * below its store's reorder point.
+ *
+ * placeOrder reports every stock change it makes; nothing scans Product.
+ * A change that crosses the reorder point of the store queues a trigger.
+ * Only stores with a row in ReorderPolicies are restocked; a store opts in
+ * by adding one, and the others are left to their managers.
+ * Triggers are debounced: the queue is flushed DEBOUNCE_MILLIS after its
+ * first trigger, repeated triggers for a product already queued are
+ * coalesced, and a product restocked less than COOLDOWN_MILLIS ago is not
+ * queued again. A flush groups the queue by the warehouse nearest to each
+ * store and places each group as one batch of ProductSupplyRequests in a
+ * single transaction, adding the units to Product the same way
+ * placeProductSupplyRequests does.
+ *
+ * The engine runs on a daemon thread with its own connections and reloads
+ * the store locations, managers and policies every POLICY_REFRESH_MILLIS.
+ * With a sharded catalog (see ShardRouter) the groups are split by the
+ * shard of each store as well, so every transaction stays on one shard.
+ */
+public class ReplenishmentEngine implements Runnable {
+   private static final long DEBOUNCE_MILLIS = 10000;
+   private static final long COOLDOWN_MILLIS = 60000;
+   private static final long POLICY_REFRESH_MILLIS = 60000;
+
+   // what the engine knows about one store
+   private static class StorePolicy {
+      int managerID;
+      int warehouseID;
+      int reorderPoint;
+      int reorderQuantity;
+   }
+
+   private final Retail esql;
+   // connections by shard, opened on first use
+   private final Map<Integer, Connection> connections = new HashMap<Integer, Connection>();
+   private Map<Integer, StorePolicy> policies = new HashMap<Integer, StorePolicy>();
+   private long policiesLoaded = 0;
+   // "storeID|product key" -> (storeID, productName), in trigger order
+   private final Map<String, Object[]> pending = new LinkedHashMap<String, Object[]>();
+   private final Map<String, Long> restockedAt = new HashMap<String, Long>();
+   private long firstPending = 0;
+   private boolean stopped = false;
+   // keeps the engine thread and shutdown() from flushing on the connection at the same time
+   private final Object flushLock = new Object();
+
+   private ReplenishmentEngine(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Starts the engine on a daemon thread with its own connection.
+    *
+    * @param esql the Retail instance whose connection settings are reused
+    * @return the running engine
+    */
+   public static ReplenishmentEngine start(Retail esql) {
+      ReplenishmentEngine engine = new ReplenishmentEngine(esql);
+      Thread thread = new Thread(engine, "replenishment");
+      thread.setDaemon(true);
+      thread.start();
+      return engine;
+   }
+
+   /**
+    * Reports a change in the stock of a product, queueing a restock when the
+    * change crosses the store's reorder point.
+    *
+    * @param storeID the store
+    * @param productName the product
+    * @param before the units in stock before the change
+    * @param after the units in stock after the change
+    */
+   public synchronized void stockChanged(int storeID, String productName, int before, int after) {
+      StorePolicy policy = policies.get(storeID);
+      if (policy == null || before <= policy.reorderPoint || after > policy.reorderPoint) {
+         return;
+      }
+      String key = storeID + "|" + productName.trim().toLowerCase();
+      Long restocked = restockedAt.get(key);
+      if (pending.containsKey(key) || (restocked != null && System.currentTimeMillis() - restocked < COOLDOWN_MILLIS)) {
+         return;
+      }
+      if (pending.isEmpty()) {
+         firstPending = System.currentTimeMillis();
+      }
+      pending.put(key, new Object[] { storeID, productName.trim() });
+      notifyAll();
+   }
+
+   /**
+    * Places whatever is still queued and stops the engine. Called on exit.
+    */
+   public void shutdown() {
+      synchronized (this) {
+         stopped = true;
+         notifyAll();
+      }
+      try {
+         flush();
+      } catch (SQLException e) {
+         System.err.println("Unable to place queued restocks: " + e.getMessage());
+      }
+      close();
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            if (System.currentTimeMillis() - policiesLoaded >= POLICY_REFRESH_MILLIS) {
+               loadPolicies();
+            }
+            boolean due;
+            synchronized (this) {
+               due = !pending.isEmpty() && System.currentTimeMillis() >= firstPending + DEBOUNCE_MILLIS;
+            }
+            if (due) {
+               flush();
+            }
+            synchronized (this) {
+               long wait = policiesLoaded + POLICY_REFRESH_MILLIS - System.currentTimeMillis();
+               if (!pending.isEmpty()) {
+                  wait = Math.min(wait, firstPending + DEBOUNCE_MILLIS - System.currentTimeMillis());
+               }
+               if (wait > 0 && !stopped) {
+                  wait(wait);
+               }
+               if (stopped) {
+                  return;
+               }
+            }
+         } catch (SQLException e) {
+            System.err.println("Replenishment interrupted: " + e.getMessage());
+            close();
+            try {
+               // retry after the debounce interval rather than in a tight loop
+               Thread.sleep(DEBOUNCE_MILLIS);
+            } catch (InterruptedException ie) {
+               return;
+            }
+         } catch (InterruptedException e) {
+            return;
+         }
+      }
+   }
+
+   private synchronized Connection connection(int shard) throws SQLException {
+      Connection connection = connections.get(shard);
+      if (connection == null) {
+         connection = esql.shards().open(shard);
+         connections.put(shard, connection);
+      }
+      return connection;
+   }
+
+   /*
+    * Loads the manager, nearest warehouse and reorder policy of each store that has a policy
+    **/
+   private void loadPolicies() throws SQLException {
+      Statement stmt = connection(0).createStatement();
+      List<double[]> warehouses = new ArrayList<double[]>();
+      ResultSet rs = stmt.executeQuery("SELECT warehouseID, latitude, longitude FROM Warehouse");
+      while (rs.next()) {
+         warehouses.add(new double[] { rs.getInt(1), rs.getDouble(2), rs.getDouble(3) });
+      }
+      Map<Integer, StorePolicy> loaded = new HashMap<Integer, StorePolicy>();
+      rs = stmt.executeQuery("SELECT S.storeID, S.managerID, S.latitude, S.longitude, R.reorderPoint, R.reorderQuantity FROM Store S JOIN ReorderPolicies R ON R.storeID = S.storeID");
+      while (rs.next()) {
+         StorePolicy policy = new StorePolicy();
+         policy.managerID = rs.getInt(2);
+         double nearest = Double.MAX_VALUE;
+         for (double[] warehouse : warehouses) {
+            double distance = Retail.calculateDistance(rs.getDouble(3), rs.getDouble(4), warehouse[1], warehouse[2]);
+            if (distance < nearest) {
+               nearest = distance;
+               policy.warehouseID = (int) warehouse[0];
+            }
+         }
+         policy.reorderPoint = rs.getInt(5);
+         policy.reorderQuantity = rs.getInt(6);
+         loaded.put(rs.getInt(1), policy);
+      }
+      stmt.close();
+      synchronized (this) {
+         policies = loaded;
+         policiesLoaded = System.currentTimeMillis();
+      }
+   }
+
+   /*
+    * Places the queued restocks, one transaction per warehouse and shard
+    **/
+   private void flush() throws SQLException {
+      synchronized (flushLock) {
+         placeRequests();
+      }
+   }
+
+   private void placeRequests() throws SQLException {
+      // (warehouseID, shard) -> triggers
+      Map<List<Integer>, List<Object[]>> byWarehouse = new LinkedHashMap<List<Integer>, List<Object[]>>();
+      Map<Integer, StorePolicy> current;
+      synchronized (this) {
+         if (pending.isEmpty()) {
+            return;
+         }
+         current = policies;
+         for (Object[] trigger : pending.values()) {
+            StorePolicy policy = current.get((Integer) trigger[0]);
+            if (policy == null) {
+               continue; // policy removed since the trigger was queued
+            }
+            List<Integer> groupKey = Arrays.asList(policy.warehouseID, esql.shards().shardOf((Integer) trigger[0]));
+            List<Object[]> group = byWarehouse.get(groupKey);
+            if (group == null) {
+               group = new ArrayList<Object[]>();
+               byWarehouse.put(groupKey, group);
+            }
+            group.add(trigger);
+         }
+      }
+      // a group that fails is rolled back and retried on the next flush; the other groups still go ahead
+      SQLException failure = null;
+      for (Map.Entry<List<Integer>, List<Object[]>> entry : byWarehouse.entrySet()) {
+         try {
+            placeGroup(entry.getKey().get(0), entry.getKey().get(1), entry.getValue(), current);
+         } catch (SQLException e) {
+            System.err.println("Unable to place restocks from warehouse " + entry.getKey().get(0) + ": " + e.getMessage());
+            if (failure == null) {
+               failure = e;
+            }
+         }
+      }
+      synchronized (this) {
+         // drop expired cooldowns so the map does not grow without bound
+         long now = System.currentTimeMillis();
+         for (Iterator<Long> it = restockedAt.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= COOLDOWN_MILLIS) {
+               it.remove();
+            }
+         }
+         if (!pending.isEmpty()) {
+            firstPending = now;
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   /*
+    * Places the restocks of one warehouse and shard in one transaction. The stock is
+    * added first; a trigger whose product is gone (deleted or renamed since it was
+    * queued) updates no row, gets no supply request and is dropped.
+    **/
+   private void placeGroup(int warehouseID, int shard, List<Object[]> group, Map<Integer, StorePolicy> current) throws SQLException {
+      Connection conn = connection(shard);
+      List<Object[]> placed = new ArrayList<Object[]>();
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      try {
+         for (Object[] trigger : group) {
+            int storeID = (Integer) trigger[0];
+            String productName = ((String) trigger[1]).replace("'", "''");
+            stmt.addBatch(String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE storeID = %d AND productName = '%s'", current.get(storeID).reorderQuantity, storeID, productName));
+         }
+         int[] updated = stmt.executeBatch();
+         for (int i = 0; i < group.size(); i++) {
+            Object[] trigger = group.get(i);
+            int storeID = (Integer) trigger[0];
+            if (updated[i] == 0) {
+               System.err.println("Dropping restock of " + trigger[1] + " at store " + storeID + ": the product no longer exists");
+               continue;
+            }
+            StorePolicy policy = current.get(storeID);
+            stmt.addBatch(String.format("INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES(%d, %d, %d, '%s', %d)", policy.managerID, warehouseID, storeID, ((String) trigger[1]).replace("'", "''"), policy.reorderQuantity));
+            placed.add(trigger);
+         }
+         if (!placed.isEmpty()) {
+            stmt.executeBatch();
+         }
+         conn.commit();
+      } catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+         conn.setAutoCommit(true);
+      }
+      long now = System.currentTimeMillis();
+      for (Object[] trigger : placed) {
+         int storeID = (Integer) trigger[0];
+         esql.inventory().addUnits(storeID, (String) trigger[1], current.get(storeID).reorderQuantity);
+         synchronized (this) {
+            restockedAt.put(storeID + "|" + ((String) trigger[1]).toLowerCase(), now);
+         }
+      }
+      synchronized (this) {
+         for (Object[] trigger : group) {
+            pending.remove(trigger[0] + "|" + ((String) trigger[1]).toLowerCase());
+         }
+      }
+      if (!placed.isEmpty()) {
+         esql.snapshot().touch();
+      }
+   }
+
+   private synchronized void close() {
+      for (Connection connection : connections.values()) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      connections.clear();
+   }
+}//end ReplenishmentEngine
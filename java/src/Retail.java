@@ -23,6 +23,10 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.sql.Timestamp;
 import java.lang.Math;
 
 /**
@@ -33,6 +37,21 @@ public class Retail {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connections to the store shards; shard 0 is _connection
+   private ShardRouter _shards = null;
+
+   // per operation class concurrency limits and deadlines for statements on the shards
+   private AdmissionControl _admission = null;
+
+   // warm copy of Store, Warehouse and Product kept on disk between runs
+   private ReferenceSnapshot _snapshot = null;
+
+   // product -> (store, stock) index for the nearest store finder, fed by the snapshot
+   private InventoryIndex _inventory = new InventoryIndex();
+
+   // trie and trigram index over product names for product search, fed by the snapshot
+   private ProductSearchIndex _search = new ProductSearchIndex(_inventory);
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
@@ -55,14 +74,73 @@ public class Retail {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+
+         // connect to the other store shards, if any
+         this._shards = new ShardRouter(this._connection, url, user, passwd, System.getProperty("retail.shards", ""), dbname);
+         this._admission = new AdmissionControl(this._connection);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      // load the reference snapshot so the first browse does not go to the database
+      String snapshotFile = System.getProperty("retail.snapshot", dbname + ".snapshot");
+      this._snapshot = ReferenceSnapshot.open(this, new File(snapshotFile));
+      this._snapshot.addListener(this._inventory);
+      this._snapshot.addListener(this._search);
+
+      // the popularity counts scan all of Orders, so they load in the background
+      this._search.loadPopularity(this);
    }//end Retail
 
+   /**
+    * @return the store shards
+    */
+   public ShardRouter shards() {
+      return this._shards;
+   }
+
+   /**
+    * Starts an operation of the given class. Statements issued through the
+    * execute helpers then share one slot of that class and are cancelled
+    * once the class' deadline has passed.
+    *
+    * @param opClass the class of the operation
+    */
+   public void admit(AdmissionControl.OperationClass opClass) {
+      this._admission.begin(opClass);
+   }
+
+   /**
+    * Ends the current operation and gives back its slot.
+    */
+   public void release() {
+      this._admission.end();
+   }
+
+   /**
+    * @return the reference data snapshot of Store and Product
+    */
+   public ReferenceSnapshot snapshot() {
+      return this._snapshot;
+   }
+
+   /**
+    * @return the in-memory product to store inventory index
+    */
+   public InventoryIndex inventory() {
+      return this._inventory;
+   }
+
+   /**
+    * @return the in-memory product name search index
+    */
+   public ProductSearchIndex search() {
+      return this._search;
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -75,19 +153,54 @@ public class Retail {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
+      return executeUpdate (0, sql);
+   }//end executeUpdate
+
+   /**
+    * Method to execute an update SQL statement on one store shard.
+    *
+    * @param shard the shard, see ShardRouter.shardOf
+    * @param sql the input SQL string
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (int shard, String sql) throws SQLException {
+      Connection conn = this._shards.connection (shard);
+
+      // takes the operation's slot and applies its deadline
+      this._admission.beforeStatement (conn);
+
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rowCount = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      return rowCount;
    }//end executeUpdate
 
+   /**
+    * Method to execute an update SQL statement on a replicated table (Users,
+    * Store, Warehouse) on every shard, shard 0 first.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows affected on shard 0
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateReplicated (String sql) throws SQLException {
+      int rowCount = executeUpdate (0, sql);
+      for (int shard = 1; shard < this._shards.count (); shard++) {
+         executeUpdate (shard, sql);
+      }
+      return rowCount;
+   }//end executeUpdateReplicated
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -98,39 +211,49 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      return executeQueryAndPrintResult (0, query);
+   }//end executeQuery
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on one
+    * store shard and output the results to standard out.
+    *
+    * @param shard the shard, see ShardRouter.shardOf
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (int shard, String query) throws SQLException {
+      List<String> header = new ArrayList<String>();
+      return printResult (header, executeQueryAndReturnResult (shard, query, header));
+   }//end executeQuery
 
-      // iterates through the result set and output them to standard out.
+   /**
+    * Method to output rows to standard out the way executeQueryAndPrintResult
+    * does, for results merged from several shards.
+    *
+    * @param header the column names
+    * @param rows the rows
+    * @return the number of rows printed
+    */
+   public static int printResult (List<String> header, List<List<String>> rows) {
+      // iterates through the rows and output them to standard out.
       boolean outputHeader = true;
-      while (rs.next()){
+      for (List<String> record : rows) {
          if(outputHeader){
-            for(int i = 1; i <= numCol; i++) {
-	       System.out.print(rsmd.getColumnName(i) + "\t");
+            for(int i = 0; i < header.size(); i++) {
+	       System.out.print(header.get(i) + "\t");
 	    }
 	    System.out.println();
 	    outputHeader = false;
 	 }
-         for (int i=1; i<=numCol; ++i) {
-            System.out.print (rs.getString (i) + "\t");
+         for (int i = 0; i < record.size(); ++i) {
+            System.out.print (record.get (i) + "\t");
          }
          System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+      }//end for
+      return rows.size();
+   }//end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -142,8 +265,64 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return executeQueryAndReturnResult (0, query, null);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on one
+    * store shard and return the results as a list of records.
+    *
+    * @param shard the shard, see ShardRouter.shardOf
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (int shard, String query) throws SQLException {
+      return executeQueryAndReturnResult (shard, query, null);
+   }//end executeQueryAndReturnResult
+
+   private List<List<String>> executeQueryAndReturnResult (int shard, String query, List<String> header) throws SQLException {
+      Connection conn = this._shards.connection (shard);
+
+      // takes the operation's slot and applies its deadline
+      this._admission.beforeStatement (conn);
+      return readResult (conn, query, header);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on every
+    * store shard in parallel and return all of the results. The caller
+    * merges them, see ShardRouter.sort and ShardRouter.sum.
+    *
+    * @param query the input query string
+    * @param header filled with the column names when not null
+    * @return the query results of every shard as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryOnAllShards (final String query, final List<String> header) throws SQLException {
+      List<Callable<List<List<String>>>> tasks = new ArrayList<Callable<List<List<String>>>>();
+      for (int shard = 0; shard < this._shards.count (); shard++) {
+         final Connection conn = this._shards.connection (shard);
+         final boolean first = shard == 0;
+
+         // the admission state is not thread safe, so the deadline is applied before fanning out
+         this._admission.beforeStatement (conn);
+         tasks.add (new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return readResult (conn, query, first ? header : null);
+            }
+         });
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (List<List<String>> shardResult : this._shards.scatter (tasks)) {
+         result.addAll (shardResult);
+      }
+      return result;
+   }//end executeQueryOnAllShards
+
+   private static List<List<String>> readResult (Connection conn, String query, List<String> header) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -154,10 +333,13 @@ public class Retail {
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+      if (header != null) {
+         for (int i = 1; i <= numCol; i++) {
+            header.add (rsmd.getColumnName (i));
+         }
+      }
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()) {
          List<String> record = new ArrayList<String>();
@@ -168,7 +350,7 @@ public class Retail {
       }//end while
       stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -179,6 +361,9 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       // takes the operation's slot and applies its deadline
+       this._admission.beforeStatement (this._connection);
+
        // creates a statement object
        Statement stmt = this._connection.createStatement ();
 
@@ -205,6 +390,7 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
+	this._admission.beforeStatement (this._connection);
 	Statement stmt = this._connection.createStatement ();
 
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
@@ -218,6 +404,12 @@ public class Retail {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._snapshot != null){
+         this._snapshot.close ();
+      }//end if
+      if (this._shards != null){
+         this._shards.close ();
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -238,6 +430,12 @@ public class Retail {
    static float userLongitude = 0;
    static float userLatitude = 0;
 
+   // background job finishing soft deleted users
+   static UserPurger purger = null;
+
+   // background job restocking products that orders take below their reorder point
+   static ReplenishmentEngine replenisher = null;
+
    /**
     * The main execution method
     *
@@ -264,6 +462,8 @@ public class Retail {
          String dbport = args[1];
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
+         purger = UserPurger.start(esql);
+         replenisher = ReplenishmentEngine.start(esql);
 
          boolean keepon = true;
          while(keepon) {
@@ -302,6 +502,8 @@ public class Retail {
                         System.out.println("9. View 5 Popular Customers");
                         System.out.println("10. Place Product Supply Request to Warehouse");
                      }
+                     System.out.println("11. Find 5 Nearest Stores With a Product");
+                     System.out.println("12. Search Products");
                      System.out.println(".........................");
                      System.out.println("20. Log out");
 		     if(userType.matches(".*manager.*")) { // execute methods based on user type
@@ -316,6 +518,8 @@ public class Retail {
                            case 8: viewPopularProducts(esql); break;
                            case 9: viewPopularCustomers(esql); break;
                            case 10: placeProductSupplyRequests(esql); break;
+                           case 11: findNearestStores(esql); break;
+                           case 12: searchProducts(esql); break;
 
                            case 20: 
 			      usermenu = false; 
@@ -333,6 +537,8 @@ public class Retail {
                            case 2: viewProducts(esql); break;
                            case 3: placeOrder(esql); break;
                            case 4: viewRecentOrders(esql); break;
+                           case 11: findNearestStores(esql); break;
+                           case 12: searchProducts(esql); break;
 
                            case 20: 
 			      usermenu = false;
@@ -358,6 +564,10 @@ public class Retail {
 		     System.out.println("8. Delete User");
                      System.out.println("9. View All Recent Product Updates Info");
 		     System.out.println("10. View All Recent Product Supply Requests Info");
+		     System.out.println("11. View User Deletion Progress");
+		     System.out.println("12. Search Products");
+		     System.out.println("13. Export Order History Archive");
+		     System.out.println("14. View Archived Order Totals");
                      System.out.println(".........................");
                      System.out.println("20. Log out");
                      switch (readChoice()) {
@@ -371,6 +581,10 @@ public class Retail {
 			case 8: deleteUserAdmin(esql); break;
                         case 9: viewAllRecentUpdates(esql); break;
 			case 10: viewAllRecentRequests(esql); break;
+			case 11: viewUserDeletions(esql); break;
+			case 12: searchProducts(esql); break;
+			case 13: exportArchive(esql); break;
+			case 14: viewArchivedOrderTotals(esql); break;
 
                         case 20:
                            usermenu = false;
@@ -391,6 +605,9 @@ public class Retail {
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            if(replenisher != null) {
+               replenisher.shutdown();
+            }//end if
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
@@ -446,11 +663,22 @@ public class Retail {
          String type ="customer";
 
 	 String query = String.format("INSERT INTO Users (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+         esql.admit(AdmissionControl.OperationClass.CHECKOUT);
          esql.executeUpdate(query);
+         if (esql.shards().count() > 1) {
+            // users are replicated; the other shards take the userID shard 0 assigned
+            int userID = esql.getCurrSeqVal("users_userid_seq");
+            String replica = String.format("INSERT INTO Users (userID, name, password, latitude, longitude, type) VALUES (%d, '%s','%s', %s, %s,'%s')", userID, name, password, latitude, longitude, type);
+            for (int shard = 1; shard < esql.shards().count(); shard++) {
+               esql.executeUpdate(shard, replica);
+            }
+         }
 
          System.out.println ("User successfully created!");
       } catch(Exception e) {
          System.err.println (e.getMessage());
+      } finally {
+         esql.release();
       }
    }//end CreateUser
 
@@ -465,7 +693,8 @@ public class Retail {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s'", name, password);
+         String query = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND deletedOn IS NULL", name, password);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
 	 List<List<String>> executedQuery = esql.executeQueryAndReturnResult(query);
 	 if (userName == null) {
             userId = executedQuery.get(0).get(0);
@@ -492,6 +721,8 @@ public class Retail {
 	 System.out.println("Invalid credentials");
          System.err.println (e.getMessage());
          return null;
+      } finally {
+         esql.release();
       }
    }//end
 
@@ -501,8 +732,8 @@ public class Retail {
    **/
    public static void viewStores(Retail esql) {
       try {
-         String query = String.format("SELECT * FROM Store");
-	 List<List<String>> executedQuery = esql.executeQueryAndReturnResult(query);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
+	 List<List<String>> executedQuery = esql.snapshot().stores();
 	 List<Integer> withinRadius = new ArrayList<Integer>();
 	 for(int i = 0; i < executedQuery.size(); i++) {
 	    float sLatitude = Float.parseFloat(executedQuery.get(i).get(2));
@@ -529,6 +760,8 @@ public class Retail {
 	 }
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }   
    }
 
@@ -538,6 +771,7 @@ public class Retail {
    public static void viewManagedStores(Retail esql) {
       try {
          String query = String.format("SELECT * FROM Store WHERE managerID = '%s'", userId);
+         esql.admit(AdmissionControl.OperationClass.BROWSE);
          List<List<String>> executedQuery = esql.executeQueryAndReturnResult(query);
          System.out.println("Managed stores: ");
          for(int i = 0; i < executedQuery.size(); i++) {
@@ -554,6 +788,8 @@ public class Retail {
          }
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -564,13 +800,21 @@ public class Retail {
       try {
          System.out.print("\tEnter store ID: ");
 	 String storeID = in.readLine();
-	 String query = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Store S, Product P WHERE S.storeID = '%s' AND S.storeID = P.storeID", storeID);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
+	 List<List<String>> products = esql.snapshot().products(storeID);
 	 System.out.print("Available products in ");
 	 System.out.print(storeID);
 	 System.out.println(": ");
-	 int num = esql.executeQueryAndPrintResult(query);	 
+	 if(products.size() > 0) {
+	    System.out.println("productname\tnumberofunits\tpriceperunit\t");
+	 }
+	 for(int i = 0; i < products.size(); i++) {
+	    System.out.println(products.get(i).get(1) + "\t" + products.get(i).get(2) + "\t" + products.get(i).get(3) + "\t");
+	 }
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }  
    }
 
@@ -585,13 +829,27 @@ public class Retail {
 	 String productName = in.readLine();
 	 System.out.print("\tEnter number of units: ");
 	 String numberOfUnits = in.readLine();
-	 String query1 = String.format("UPDATE Product SET numberOfUnits = (numberOfUnits - %s) WHERE storeID = '%s' AND productName = '%s'", numberOfUnits, storeID, productName);
+	 String query1 = String.format("UPDATE Product SET numberOfUnits = (numberOfUnits - %s) WHERE storeID = '%s' AND productName = '%s' RETURNING numberOfUnits", numberOfUnits, storeID, productName);
 	 String query2 = String.format("INSERT INTO Orders (customerID, storeID, productName, unitsOrdered) VALUES ('%s', '%s', '%s', %s)", userId, storeID, productName, numberOfUnits);
-	 esql.executeUpdate(query1);
-	 esql.executeUpdate(query2);
+	 int shard = esql.shards().shardOf(storeID);
+	 esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+	 List<List<String>> updated = esql.executeQueryAndReturnResult(shard, query1);
+	 if(updated.size() == 0) {
+	    System.out.println("Product not found.");
+	    return;
+	 }
+	 esql.executeUpdate(shard, query2);
+	 int units = Integer.parseInt(numberOfUnits.trim());
+	 int remaining = Integer.parseInt(updated.get(0).get(0).trim());
+	 esql.inventory().setUnits(Integer.parseInt(storeID.trim()), productName, remaining);
+	 esql.search().addUnitsOrdered(productName, units);
+	 replenisher.stockChanged(Integer.parseInt(storeID.trim()), productName, remaining + units, remaining);
+	 esql.snapshot().touch();
 	 System.out.println("Order placed.");
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -600,13 +858,20 @@ public class Retail {
     **/ 
    public static void viewRecentOrders(Retail esql) {
       try {
-	 String query = String.format("SELECT * FROM Orders WHERE customerID = '%s' ORDER BY orderNumber DESC LIMIT 5", userId);
-	 if(userType.matches(".*manager.*") || userType.matches(".*admin.*")) {
-	    query = String.format("SELECT * FROM Orders O, Store S WHERE S.managerID = '%s' AND O.storeID = S.storeID ORDER BY orderNumber", userId);
+	 String query = String.format("SELECT * FROM Orders WHERE customerID = '%s' ORDER BY orderTime DESC LIMIT 5", userId);
+	 boolean manager = userType.matches(".*manager.*") || userType.matches(".*admin.*");
+	 if(manager) {
+	    query = String.format("SELECT * FROM Orders O, Store S WHERE S.managerID = '%s' AND O.storeID = S.storeID ORDER BY orderTime", userId);
 	 }
-	 esql.executeQueryAndPrintResult(query);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = esql.executeQueryOnAllShards(query, header);
+	 // order numbers interleave across shards at each shard's own rate, so the shards are merged by orderTime
+	 Retail.printResult(header, ShardRouter.sort(rows, 5, false, !manager, manager ? -1 : 5));
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -625,11 +890,20 @@ public class Retail {
 	 String pricePerUnit = in.readLine();
 	 String query1 = String.format("UPDATE Product SET numberOfUnits = '%s', pricePerUnit = '%s' WHERE productName = '%s' AND '%s' IN (SELECT S.storeID FROM Store S, Users U WHERE U.userID = S.managerID AND U.userID = '%s')", numberOfUnits, pricePerUnit, product, storeID, userId);
 	 String query2 = String.format("INSERT INTO productUpdates(managerID, storeID, productName, updatedOn) VALUES('%s', '%s', '%s', now())", userId, storeID, product);
-	 esql.executeUpdate(query1);
-	 esql.executeUpdate(query2);
+	 int shard = esql.shards().shardOf(storeID);
+	 esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+	 if(esql.executeUpdate(shard, query1) == 0) {
+	    System.out.println("Product not found in your stores.");
+	    return;
+	 }
+	 esql.executeUpdate(shard, query2);
+	 esql.inventory().setUnits(Integer.parseInt(storeID.trim()), product, Integer.parseInt(numberOfUnits.trim()));
+	 esql.snapshot().touch();
 	 System.out.println("Item updated.");	 
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
    
@@ -639,9 +913,14 @@ public class Retail {
    public static void viewRecentUpdates(Retail esql) {
       try {
 	 String query = String.format("SELECT P.* FROM ProductUpdates P, Store S WHERE P.storeID = S.storeID AND S.managerID = '%s' ORDER BY P.updatedOn DESC LIMIT 5", userId);
-	 esql.executeQueryAndPrintResult(query);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = esql.executeQueryOnAllShards(query, header);
+	 Retail.printResult(header, ShardRouter.sort(rows, 4, false, true, 5));
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -650,10 +929,16 @@ public class Retail {
     **/ 
    public static void viewPopularProducts(Retail esql) {
       try {
-	 String query = String.format("SELECT O.productName, SUM(O.unitsOrdered) AS numberOfOrders FROM Store S, Orders O WHERE S.managerID = '%s' AND S.storeID = O.storeID GROUP BY O.productName ORDER BY SUM(O.unitsOrdered) DESC LIMIT 5", userId);
-	 esql.executeQueryAndPrintResult(query);	 
+	 String query = String.format("SELECT O.productName, SUM(O.unitsOrdered) AS numberOfOrders FROM Store S, Orders O WHERE S.managerID = '%s' AND S.storeID = O.storeID GROUP BY O.productName", userId);
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 // a per shard LIMIT could drop a product that is popular across shards, so every shard returns its full totals
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = ShardRouter.sum(esql.executeQueryOnAllShards(query, header), 1, 1);
+	 Retail.printResult(header, ShardRouter.sort(rows, 1, true, true, 5));
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -662,10 +947,15 @@ public class Retail {
     **/ 
    public static void viewPopularCustomers(Retail esql) {
       try {
-	 String query = String.format("SELECT U.name, O.customerID, COUNT(*) AS numberOfOrders FROM Store S, Orders O, Users U WHERE S.managerID = '%s' AND S.storeID = O.storeID AND O.customerID = U.userID GROUP BY U.name, O.customerID ORDER BY COUNT(O.customerID) DESC LIMIT 5", userId);
-	 esql.executeQueryAndPrintResult(query);
+	 String query = String.format("SELECT U.name, O.customerID, COUNT(*) AS numberOfOrders FROM Store S, Orders O, Users U WHERE S.managerID = '%s' AND S.storeID = O.storeID AND O.customerID = U.userID GROUP BY U.name, O.customerID", userId);
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = ShardRouter.sum(esql.executeQueryOnAllShards(query, header), 2, 2);
+	 Retail.printResult(header, ShardRouter.sort(rows, 2, true, true, 5));
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -684,11 +974,77 @@ public class Retail {
 	 String warehouseID = in.readLine();
 	 String query1 = String.format("INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES('%s', '%s', '%s', '%s', '%s')", userId, warehouseID, storeID, product, numberOfUnits);
 	 String query2 = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + %s WHERE productName = '%s' AND storeID = '%s'", numberOfUnits, product, storeID);
-	 esql.executeUpdate(query1);
-	 esql.executeUpdate(query2);
+	 int shard = esql.shards().shardOf(storeID);
+	 esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+	 esql.executeUpdate(shard, query1);
+	 esql.executeUpdate(shard, query2);
+	 esql.inventory().addUnits(Integer.parseInt(storeID.trim()), product, Integer.parseInt(numberOfUnits.trim()));
+	 esql.snapshot().touch();
 	 System.out.println("Product supply request placed.");
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
+      }
+   }
+
+   /*
+    * Lists the 5 stores nearest to the user that have a product in stock, from the in-memory inventory index
+    **/ 
+   public static void findNearestStores(Retail esql) {
+      try {
+	 System.out.print("\tEnter product name: ");
+	 String productName = in.readLine();
+	 List<InventoryIndex.StoreStock> stores = esql.inventory().nearest(productName, userLatitude, userLongitude, 5);
+	 System.out.println("Nearest stores with " + productName.trim() + " in stock: ");
+	 if(stores.size() == 0) {
+	    System.out.println("No store has this product in stock.");
+	 }
+	 for(int i = 0; i < stores.size(); i++) {
+	    System.out.print(i + 1);
+	    System.out.println(". ");
+	    System.out.print("    Store Name: ");
+	    System.out.println(stores.get(i).storeName);
+	    System.out.print("    Store ID: ");
+	    System.out.println(stores.get(i).storeID);
+	    System.out.print("    Units in stock: ");
+	    System.out.println(stores.get(i).numberOfUnits);
+	    System.out.print("    Distance: ");
+	    System.out.println(String.format("%.2f", stores.get(i).distance));
+	 }
+      } catch(Exception e) {
+	 System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Searches product names by prefix, tolerating typos, ranked by nearest store with stock and popularity
+    **/ 
+   public static void searchProducts(Retail esql) {
+      try {
+	 System.out.print("\tEnter search keyword: ");
+	 String keyword = in.readLine();
+	 List<ProductSearchIndex.Match> matches = esql.search().search(esql, keyword, userLatitude, userLongitude, 10);
+	 System.out.println("Products matching " + keyword.trim() + ": ");
+	 if(matches.size() == 0) {
+	    System.out.println("No products found.");
+	 }
+	 for(int i = 0; i < matches.size(); i++) {
+	    System.out.print(i + 1);
+	    System.out.println(". ");
+	    System.out.print("    Product Name: ");
+	    System.out.println(matches.get(i).productName);
+	    System.out.print("    Nearest Store With Stock: ");
+	    if(matches.get(i).nearestStore == null) {
+	       System.out.println("none");
+	    } else {
+	       System.out.println(matches.get(i).nearestStore.storeID + " (" + String.format("%.2f", matches.get(i).nearestStore.distance) + " away)");
+	    }
+	    System.out.print("    Units Ordered: ");
+	    System.out.println(matches.get(i).unitsOrdered < 0 ? "loading" : String.valueOf(matches.get(i).unitsOrdered));
+	 }
+      } catch(Exception e) {
+	 System.err.println(e.getMessage());
       }
    }
 
@@ -697,8 +1053,8 @@ public class Retail {
     **/ 
    public static void viewAllStores(Retail esql) {
       try {
-         String query = String.format("SELECT * FROM Store");
-	 List<List<String>> executedQuery = esql.executeQueryAndReturnResult(query);
+	 esql.admit(AdmissionControl.OperationClass.BROWSE);
+	 List<List<String>> executedQuery = esql.snapshot().stores();
 	 System.out.println("All stores: ");
 	 for(int i = 0; i < executedQuery.size(); i++) {
 	    System.out.print(i + 1);
@@ -714,6 +1070,8 @@ public class Retail {
 	 }
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }   
    }
 
@@ -722,10 +1080,13 @@ public class Retail {
     **/ 
    public static void viewAllCustomers(Retail esql) {
       try {
-         String query = String.format("SELECT * FROM Users WHERE type = 'customer' OR type = 'manager' ORDER BY userID");
+         String query = String.format("SELECT userID, name, password, latitude, longitude, type FROM Users WHERE (type = 'customer' OR type = 'manager') AND deletedOn IS NULL ORDER BY userID");
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
 	 esql.executeQueryAndPrintResult(query);
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }   
    }
 
@@ -735,9 +1096,14 @@ public class Retail {
    public static void viewAllRecentOrders(Retail esql) {
       try {
 	 String query = String.format("SELECT * FROM Orders");
-	 esql.executeQueryAndPrintResult(query);
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = esql.executeQueryOnAllShards(query, header);
+	 Retail.printResult(header, ShardRouter.sort(rows, 0, true, false, -1));
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -758,11 +1124,20 @@ public class Retail {
 	 String pricePerUnit = in.readLine();
 	 String query1 = String.format("INSERT INTO productUpdates(managerID, storeID, productName, updatedOn) VALUES('%s', '%s', '%s', now())", userId, storeID, product);
 	 String query2 = String.format("UPDATE Product SET productName = '%s', numberOfUnits = '%s', pricePerUnit = '%s' WHERE productName = '%s' AND storeID = '%s'", productName, numberOfUnits, pricePerUnit, product, storeID);
-	 esql.executeUpdate(query1);
-	 esql.executeUpdate(query2);
+	 int shard = esql.shards().shardOf(storeID);
+	 esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+	 esql.executeUpdate(shard, query1);
+	 if(esql.executeUpdate(shard, query2) > 0) {
+	    esql.inventory().rename(Integer.parseInt(storeID.trim()), product, productName);
+	    esql.search().rename(Integer.parseInt(storeID.trim()), product, productName);
+	    esql.inventory().setUnits(Integer.parseInt(storeID.trim()), productName, Integer.parseInt(numberOfUnits.trim()));
+	 }
+	 esql.snapshot().touch();
 	 System.out.println("Item updated.");	 
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -784,37 +1159,132 @@ public class Retail {
 	 System.out.print("\tEnter new user type: ");
 	 String type = in.readLine();
 	 String query = String.format("UPDATE Users SET name = '%s', password = '%s', latitude = '%s', longitude = '%s', type = '%s' WHERE userID = '%s'", name, password, latitude, longitude, type, userID);
-	 esql.executeUpdate(query);
+	 esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+	 esql.executeUpdateReplicated(query);
 	 System.out.println("User updated.");	 
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
    /*
-    * Allows an admin to delete any user
+    * Allows an admin to delete any user. The user is hidden at once and their orders, updates and
+    * supply requests are purged in the background by the UserPurger; both statements are safe to repeat
     **/ 
    public static void deleteUserAdmin(Retail esql) {
       try {
          System.out.print("\tEnter user ID: ");
          String userID = in.readLine();
-         String query = String.format("DELETE FROM Users WHERE userID = '%s'", userID);
-         esql.executeUpdate(query);
-         System.out.println("User deleted.");
+         if(userID.trim().equals(userId.trim())) {
+            System.out.println("You cannot delete your own account.");
+            return;
+         }
+         String query1 = String.format("UPDATE Users SET deletedOn = COALESCE(deletedOn, now()) WHERE userID = '%s'", userID);
+         String query2 = String.format("INSERT INTO UserDeletions(userID, requestedBy) SELECT '%s', '%s' WHERE NOT EXISTS (SELECT 1 FROM UserDeletions WHERE userID = '%s')", userID, userId, userID);
+         esql.admit(AdmissionControl.OperationClass.CHECKOUT);
+         if(esql.executeUpdateReplicated(query1) == 0) {
+            System.out.println("User not found.");
+            return;
+         }
+         esql.executeUpdate(query2);
+         purger.wake();
+         System.out.println("User deleted. Their order history is being removed in the background.");
       } catch(Exception e) {
          System.err.println(e.getMessage());
+      } finally {
+         esql.release();
+      }
+   }
+
+   /*
+    * Allows an admin to follow the background purge of deleted users
+    **/ 
+   public static void viewUserDeletions(Retail esql) {
+      try {
+	 String query = String.format("SELECT D.userID, D.status, D.rowsPurged, D.requestedOn, D.lastBatchOn FROM UserDeletions D ORDER BY D.requestedOn DESC");
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 esql.executeQueryAndPrintResult(query);
+      } catch(Exception e) {
+	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
+      }
+   }
+
+   /*
+    * Allows an admin to export Orders, ProductUpdates and ProductSupplyRequests into the columnar archive
+    **/ 
+   public static void exportArchive(Retail esql) {
+      try {
+	 esql.admit(AdmissionControl.OperationClass.ARCHIVE_EXPORT);
+	 List<String> summary = OrderArchive.export(esql, archiveDirectory());
+	 for(int i = 0; i < summary.size(); i++) {
+	    System.out.println(summary.get(i));
+	 }
+	 System.out.println("Archive exported to " + archiveDirectory().getPath() + ".");
+      } catch(Exception e) {
+	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
+   /*
+    * Allows an admin to total the units ordered per product over a date range from the archive, without querying the database
+    **/ 
+   public static void viewArchivedOrderTotals(Retail esql) {
+      try {
+	 System.out.print("\tEnter start date (YYYY-MM-DD): ");
+	 String start = in.readLine();
+	 System.out.print("\tEnter end date (YYYY-MM-DD): ");
+	 String end = in.readLine();
+	 System.out.print("\tEnter store ID (blank for all stores): ");
+	 String storeID = in.readLine().trim();
+	 long from = Timestamp.valueOf(start.trim() + " 00:00:00").getTime();
+	 long to = Timestamp.valueOf(end.trim() + " 23:59:59.999").getTime();
+	 long store = storeID.length() == 0 ? -1 : Long.parseLong(storeID);
+	 String[] columns = storeID.length() == 0 ? new String[] { "orderTime" } : new String[] { "orderTime", "storeID" };
+	 long[] lo = storeID.length() == 0 ? new long[] { from } : new long[] { from, store };
+	 long[] hi = storeID.length() == 0 ? new long[] { to } : new long[] { to, store };
+	 final Map<String, Long> totals = new TreeMap<String, Long>();
+	 OrderArchive.scan(new File(archiveDirectory(), "orders.rcol"), columns, lo, hi, new OrderArchive.RowSink() {
+	    public void row(Object[] values) {
+	       Long total = totals.get((String) values[3]);
+	       totals.put((String) values[3], (total == null ? 0 : total) + (Long) values[4]);
+	    }
+	 });
+	 if(totals.size() > 0) {
+	    System.out.println("productname\tunitsordered\t");
+	 }
+	 for(Map.Entry<String, Long> total : totals.entrySet()) {
+	    System.out.println(total.getKey() + "\t" + total.getValue() + "\t");
+	 }
+      } catch(Exception e) {
+	 System.err.println(e.getMessage());
+      }
+   }
+
+   // directory holding the columnar archive files
+   static File archiveDirectory() {
+      return new File(System.getProperty("retail.archive", "archive"));
+   }
+
    /*
     * Allows a manager to view the top five most popular products
     **/ 
    public static void viewAllRecentUpdates(Retail esql) {
       try {
 	 String query = String.format("SELECT P.* FROM ProductUpdates P ORDER BY P.updatedOn");
-	 esql.executeQueryAndPrintResult(query);
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = esql.executeQueryOnAllShards(query, header);
+	 Retail.printResult(header, ShardRouter.sort(rows, 4, false, false, -1));
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
@@ -824,9 +1294,14 @@ public class Retail {
    public static void viewAllRecentRequests(Retail esql) {
       try {
 	 String query = String.format("SELECT P.* FROM ProductSupplyRequests P ORDER BY P.requestNumber");
-	 esql.executeQueryAndPrintResult(query);
+	 esql.admit(AdmissionControl.OperationClass.ADMIN_REPORT);
+	 List<String> header = new ArrayList<String>();
+	 List<List<String>> rows = esql.executeQueryOnAllShards(query, header);
+	 Retail.printResult(header, ShardRouter.sort(rows, 0, true, false, -1));
       } catch(Exception e) {
 	 System.err.println(e.getMessage());
+      } finally {
+         esql.release();
       }
    }
 
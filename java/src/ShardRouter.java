@@ -0,0 +1,217 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class places the store scoped tables (Product, Orders,
+ * ProductUpdates and ProductSupplyRequests) on N Postgres shards by storeID
+ * and keeps one connection per shard.
+ *
+ * Shard 0 is the database given on the command line; the other shards are
+ * listed in the retail.shards system property as port or port/dbname
+ * entries on localhost, e.g. -Dretail.shards=5433,5434/retail_s2. Without
+ * the property there is one shard and nothing changes.
+ *
+ * A store lives on shard storeID mod N. Users, Store and Warehouse are
+ * replicated on every shard so foreign keys and joins stay local; they are
+ * read from shard 0 and written to every shard, shard 0 first, without a
+ * distributed transaction. Cross-shard views run the same query on every
+ * shard in parallel and merge the results with sort() and sum().
+ * sql/scripts/create_sharded_db.sh sets the shards up.
+ */
+public class ShardRouter {
+   private final List<String> urls = new ArrayList<String>();
+   private final List<Connection> connections = new ArrayList<Connection>();
+   private final String user;
+   private final String passwd;
+   private ExecutorService scatter = null;
+
+   /**
+    * Opens a connection to every shard.
+    *
+    * @param primary the connection to shard 0
+    * @param url the URL of shard 0
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @param shards the other shards as a comma separated list of port or port/dbname, may be empty
+    * @param dbname the database name used when an entry has none
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public ShardRouter(Connection primary, String url, String user, String passwd, String shards, String dbname) throws SQLException {
+      this.user = user;
+      this.passwd = passwd;
+      urls.add(url);
+      connections.add(primary);
+      for (String entry : shards.split(",")) {
+         entry = entry.trim();
+         if (entry.length() == 0) {
+            continue;
+         }
+         String port = entry.contains("/") ? entry.substring(0, entry.indexOf('/')) : entry;
+         String shardDb = entry.contains("/") ? entry.substring(entry.indexOf('/') + 1) : dbname;
+         String shardUrl = "jdbc:postgresql://localhost:" + port + "/" + shardDb;
+         urls.add(shardUrl);
+         connections.add(DriverManager.getConnection(shardUrl, user, passwd));
+      }
+      if (connections.size() > 1) {
+         scatter = Executors.newFixedThreadPool(connections.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "shard-scatter");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+   }
+
+   /**
+    * @return the number of shards
+    */
+   public int count() {
+      return connections.size();
+   }
+
+   /**
+    * @param storeID the store
+    * @return the shard holding the store's products, orders, updates and supply requests
+    */
+   public int shardOf(int storeID) {
+      return ((storeID % count()) + count()) % count();
+   }
+
+   /**
+    * @param storeID the store, as typed by the user
+    * @return the shard holding the store
+    */
+   public int shardOf(String storeID) {
+      return shardOf(Integer.parseInt(storeID.trim()));
+   }
+
+   /**
+    * @param shard the shard
+    * @return the shared connection to the shard
+    */
+   public Connection connection(int shard) {
+      return connections.get(shard);
+   }
+
+   /**
+    * Opens a new connection to a shard, for work that runs on its own thread.
+    *
+    * @param shard the shard
+    * @return the new connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection open(int shard) throws SQLException {
+      return DriverManager.getConnection(urls.get(shard), user, passwd);
+   }
+
+   /**
+    * Runs one task per shard, in parallel when there is more than one shard.
+    *
+    * @param tasks the tasks, indexed by shard
+    * @return the results, indexed by shard
+    * @throws java.sql.SQLException when a task failed
+    */
+   public <T> List<T> scatter(List<Callable<T>> tasks) throws SQLException {
+      List<T> results = new ArrayList<T>();
+      try {
+         if (scatter == null) {
+            for (Callable<T> task : tasks) {
+               results.add(task.call());
+            }
+            return results;
+         }
+         List<Future<T>> futures = new ArrayList<Future<T>>();
+         for (Callable<T> task : tasks) {
+            futures.add(scatter.submit(task));
+         }
+         for (Future<T> future : futures) {
+            results.add(future.get());
+         }
+         return results;
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) {
+            throw (SQLException) e.getCause();
+         }
+         throw new SQLException(e.getCause().getMessage());
+      } catch (SQLException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new SQLException(e.getMessage());
+      }
+   }
+
+   /**
+    * Closes the connections to every shard but shard 0, which belongs to the caller.
+    */
+   public void close() {
+      if (scatter != null) {
+         scatter.shutdownNow();
+      }
+      for (int i = 1; i < connections.size(); i++) {
+         try {
+            connections.get(i).close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
+
+   /**
+    * Sorts rows gathered from several shards on one column and keeps the first ones.
+    *
+    * @param rows the rows
+    * @param column the column to sort on
+    * @param numeric whether the column holds numbers rather than text
+    * @param descending whether to sort largest first
+    * @param limit the number of rows to keep, or -1 for all
+    * @return the sorted rows
+    */
+   public static List<List<String>> sort(List<List<String>> rows, final int column, final boolean numeric, final boolean descending, int limit) {
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int order = numeric ? Double.compare(Double.parseDouble(a.get(column).trim()), Double.parseDouble(b.get(column).trim()))
+                                : a.get(column).compareTo(b.get(column));
+            return descending ? -order : order;
+         }
+      });
+      return limit >= 0 && rows.size() > limit ? new ArrayList<List<String>>(rows.subList(0, limit)) : rows;
+   }
+
+   /**
+    * Merges per shard aggregates: rows with the same key columns are
+    * combined by adding up their value column.
+    *
+    * @param rows the rows
+    * @param keyColumns the number of leading key columns
+    * @param valueColumn the column holding the partial sum or count
+    * @return one row per key
+    */
+   public static List<List<String>> sum(List<List<String>> rows, int keyColumns, int valueColumn) {
+      Map<List<String>, List<String>> merged = new LinkedHashMap<List<String>, List<String>>();
+      for (List<String> row : rows) {
+         List<String> key = row.subList(0, keyColumns);
+         List<String> current = merged.get(key);
+         if (current == null) {
+            merged.put(key, new ArrayList<String>(row));
+         } else {
+            long total = Long.parseLong(current.get(valueColumn).trim()) + Long.parseLong(row.get(valueColumn).trim());
+            current.set(valueColumn, Long.toString(total));
+         }
+      }
+      return new ArrayList<List<String>>(merged.values());
+   }
+}//end ShardRouter
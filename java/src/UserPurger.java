@@ -0,0 +1,210 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class runs the second half of a user deletion in the background.
+ *
+ * deleteUserAdmin only soft deletes a user (sets Users.deletedOn) and queues a
+ * row in UserDeletions. The purger then removes the user's dependent rows in
+ * small batches, one short transaction per batch, pausing between batches so
+ * the purge never holds locks or floods the WAL the way a single cascading
+ * DELETE would:
+ *  1. the user's Orders,
+ *  2. the ProductUpdates and ProductSupplyRequests they made as a manager,
+ *  3. their managed Stores, which are handed to the admin who requested the
+ *     deletion, or to another live admin when that one is gone by now,
+ *  4. finally the Users row itself.
+ * Every batch records its progress in UserDeletions in the same transaction,
+ * so a purge interrupted by a restart picks up where it left off. An advisory
+ * lock per user keeps two Retail processes from purging the same user.
+ *
+ * With a sharded catalog (see ShardRouter) the dependent rows are purged on
+ * every shard and the replicated Store and Users rows on every shard, shard 0
+ * last. UserDeletions, the lock and the progress live on shard 0; a batch on
+ * another shard records its progress in a second transaction, and every
+ * step is safe to repeat after a restart.
+ */
+public class UserPurger implements Runnable {
+   private static final int BATCH_SIZE = 500;
+   private static final long BATCH_PAUSE_MILLIS = 200;
+   private static final long POLL_MILLIS = 30000;
+   // first key of the two-key advisory locks taken on a user being purged
+   private static final int PURGE_LOCK_CLASS = 27001;
+
+   // dependent tables purged in order: table, key column, user column
+   private static final String[][] DEPENDENTS = {
+      { "Orders", "orderNumber", "customerID" },
+      { "ProductUpdates", "updateNumber", "managerID" },
+      { "ProductSupplyRequests", "requestNumber", "managerID" } };
+
+   private final Retail esql;
+   // one connection per shard, shard 0 first; empty when disconnected
+   private final List<Connection> connections = new ArrayList<Connection>();
+   private Connection connection = null;
+   private boolean woken = false;
+
+   private UserPurger(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Starts the purger on a daemon thread with its own connection.
+    *
+    * @param esql the Retail instance whose connection settings are reused
+    * @return the running purger
+    */
+   public static UserPurger start(Retail esql) {
+      UserPurger purger = new UserPurger(esql);
+      Thread thread = new Thread(purger, "user-purger");
+      thread.setDaemon(true);
+      thread.start();
+      return purger;
+   }
+
+   /**
+    * Asks the purger to look for new deletions now instead of at its next poll.
+    */
+   public synchronized void wake() {
+      woken = true;
+      notifyAll();
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            if (connection == null) {
+               for (int shard = 0; shard < esql.shards().count(); shard++) {
+                  connections.add(esql.shards().open(shard));
+               }
+               connection = connections.get(0);
+            }
+            for (int[] job : pendingJobs()) {
+               purge(job[0], job[1]);
+            }
+         } catch (SQLException e) {
+            System.err.println("User purge interrupted: " + e.getMessage());
+            close();
+         } catch (InterruptedException e) {
+            close();
+            return;
+         }
+         try {
+            synchronized (this) {
+               if (!woken) {
+                  wait(POLL_MILLIS);
+               }
+               woken = false;
+            }
+         } catch (InterruptedException e) {
+            close();
+            return;
+         }
+      }
+   }
+
+   /*
+    * Returns (userID, heir) of every queued deletion whose user is soft deleted. The heir
+    * takes over the user's stores: the requesting admin if still live, else the live admin
+    * with the lowest userID, else -1. A user who manages stores and has no heir stays queued
+    **/
+   private List<int[]> pendingJobs() throws SQLException {
+      List<int[]> jobs = new ArrayList<int[]>();
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT J.userID, J.heir FROM (" +
+         "SELECT D.userID, D.requestedOn, COALESCE(" +
+         "(SELECT A.userID FROM Users A WHERE A.userID = D.requestedBy AND A.userID <> D.userID AND A.type = 'admin' AND A.deletedOn IS NULL), " +
+         "(SELECT MIN(A.userID) FROM Users A WHERE A.userID <> D.userID AND A.type = 'admin' AND A.deletedOn IS NULL)) AS heir " +
+         "FROM UserDeletions D, Users U WHERE D.userID = U.userID AND U.deletedOn IS NOT NULL AND D.status = 'pending') J " +
+         "WHERE J.heir IS NOT NULL OR NOT EXISTS (SELECT 1 FROM Store S WHERE S.managerID = J.userID) ORDER BY J.requestedOn");
+      while (rs.next()) {
+         jobs.add(new int[] { rs.getInt(1), rs.getString(2) == null ? -1 : rs.getInt(2) });
+      }
+      stmt.close();
+      return jobs;
+   }
+
+   private void purge(int userID, int heir) throws SQLException, InterruptedException {
+      if (!queryBoolean(String.format("SELECT pg_try_advisory_lock(%d, %d)", PURGE_LOCK_CLASS, userID))) {
+         return; // another process is purging this user
+      }
+      try {
+         for (int shard = 0; shard < connections.size(); shard++) {
+            for (int i = 0; i < DEPENDENTS.length; i++) {
+               String[] dependent = DEPENDENTS[i];
+               String batch = String.format("DELETE FROM %s WHERE %s IN (SELECT %s FROM %s WHERE %s = %d LIMIT %d)",
+                  dependent[0], dependent[1], dependent[1], dependent[0], dependent[2], userID, BATCH_SIZE);
+               while (runBatch(shard, userID, batch, "pending") > 0) {
+                  Thread.sleep(BATCH_PAUSE_MILLIS);
+               }
+            }
+         }
+         // Store and Users are replicated; shard 0 goes last so the job stays pending until every shard is done
+         if (heir >= 0) {
+            for (int shard = connections.size() - 1; shard >= 0; shard--) {
+               runBatch(shard, userID, String.format("UPDATE Store SET managerID = %d WHERE managerID = %d", heir, userID), "pending");
+            }
+         }
+         for (int shard = connections.size() - 1; shard >= 0; shard--) {
+            runBatch(shard, userID, String.format("DELETE FROM Users WHERE userID = %d", userID), shard == 0 ? "done" : "pending");
+         }
+      } finally {
+         queryBoolean(String.format("SELECT pg_advisory_unlock(%d, %d)", PURGE_LOCK_CLASS, userID));
+      }
+   }
+
+   /*
+    * Runs one batch on a shard and records its progress, in the same transaction on shard 0
+    **/
+   private int runBatch(int shard, int userID, String sql, String status) throws SQLException {
+      int rowCount = 0;
+      if (shard != 0) {
+         Statement stmt = connections.get(shard).createStatement();
+         try {
+            rowCount = stmt.executeUpdate(sql);
+         } finally {
+            stmt.close();
+         }
+         sql = null;
+      }
+      connection.setAutoCommit(false);
+      Statement stmt = connection.createStatement();
+      try {
+         if (sql != null) {
+            rowCount = stmt.executeUpdate(sql);
+         }
+         stmt.executeUpdate(String.format("UPDATE UserDeletions SET rowsPurged = rowsPurged + %d, lastBatchOn = now(), status = '%s' WHERE userID = %d", rowCount, status, userID));
+         connection.commit();
+         return rowCount;
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+         connection.setAutoCommit(true);
+      }
+   }
+
+   private boolean queryBoolean(String query) throws SQLException {
+      Statement stmt = connection.createStatement();
+      ResultSet rs = stmt.executeQuery(query);
+      boolean result = rs.next() && rs.getBoolean(1);
+      stmt.close();
+      return result;
+   }
+
+   private void close() {
+      for (Connection shardConnection : connections) {
+         try {
+            shardConnection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+      connections.clear();
+      connection = null;
+   }
+}//end UserPurger
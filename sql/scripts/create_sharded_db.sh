@@ -0,0 +1,16 @@
+#!/bin/bash
+# usage: create_sharded_db.sh <port of shard 0> <port of shard 1> ...
+# then run Retail against shard 0 with -Dretail.shards=<port of shard 1>,<port of shard 2>,...
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARDS=$#
+SHARD=0
+for PORT in "$@"
+do
+   echo "creating shard "$SHARD" of "$SHARDS" on port "$PORT
+   createdb -h localhost -p $PORT $USER"_DB"
+   psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_tables.sql
+   psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_indexes.sql
+   psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/load_data.sql
+   psql -h localhost -p $PORT -v shards=$SHARDS -v shard=$SHARD $USER"_DB" < $DIR/../src/shard_partition.sql
+   SHARD=$((SHARD + 1))
+done
@@ -0,0 +1,7 @@
+-- serves the reference snapshot's MAX(changeNumber) version check and its changeNumber > n patch query
+CREATE INDEX product_changenumber_idx ON Product(changeNumber);
+
+-- let the user purger find each batch of a deleted user's dependent rows without a sequential scan
+CREATE INDEX orders_customerid_idx ON Orders(customerID);
+CREATE INDEX productupdates_managerid_idx ON ProductUpdates(managerID);
+CREATE INDEX productsupplyrequests_managerid_idx ON ProductSupplyRequests(managerID);
@@ -5,6 +5,21 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS UserDeletions CASCADE;
+DROP TABLE IF EXISTS ReorderPolicies CASCADE;
+DROP TABLE IF EXISTS DatabaseEpoch CASCADE;
+DROP SEQUENCE IF EXISTS store_version_seq;
+DROP SEQUENCE IF EXISTS product_rekey_seq;
+DROP SEQUENCE IF EXISTS product_change_seq;
+
+-- version sequences checked by the Java reference snapshot; sequences are used instead of a counter row so that concurrent writers never queue on a lock
+CREATE SEQUENCE store_version_seq;
+CREATE SEQUENCE product_rekey_seq;
+CREATE SEQUENCE product_change_seq;
+
+-- random value identifying this copy of the tables; the version sequences above restart when it is recreated, so the reference snapshot compares this too
+CREATE TABLE DatabaseEpoch ( epoch bigint NOT NULL );
+INSERT INTO DatabaseEpoch VALUES (floor(random() * 9007199254740990)::bigint + 1);
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -12,6 +27,7 @@ CREATE TABLE Users ( userID serial,
 		     latitude decimal(8,6) NOT NULL CHECK(latitude >= 0 AND latitude <= 100), -- check ensures that new registering users or updated user information latitude is within location constraints
                      longitude decimal(9,6) NOT NULL CHECK(longitude >= 0 AND longitude <= 100), -- check ensures that new registering users or updated user information longitude is within location constraints 
                      type char(10) NOT NULL, -- type can be 'customer', 'manager', 'admin' 
+                     deletedOn timestamp, -- set when an admin deletes the user; the row is removed once UserDeletions finishes purging it
                      PRIMARY KEY(userID)
 );
 
@@ -30,6 +46,7 @@ CREATE TABLE Product ( storeID integer NOT NULL,
                        productName char(30) NOT NULL,
                        numberOfUnits integer NOT NULL CHECK(numberOfUnits >= 0), -- check ensures that any purchases or updates made to product number of units does not allow a larger number of products to be purchased than what is in stock or updated below zero
                        pricePerUnit float NOT NULL CHECK(numberOfUnits >= 0), -- check ensures that any updates made to product price does not allow the price to be changed below zero 
+                       changeNumber bigint NOT NULL DEFAULT nextval('product_change_seq'), -- monotonically increasing change number; lets the reference snapshot patch only the rows changed since it was taken
                        PRIMARY KEY(storeID, productName), 
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
 );
@@ -73,3 +90,49 @@ CREATE TABLE ProductUpdates ( updateNumber serial,
                               FOREIGN KEY(managerID) REFERENCES Users(userID),
                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName) ON UPDATE CASCADE -- update cascade ensures that changes to the productName changes all of the associated foreign keys
 );
+
+CREATE TABLE UserDeletions ( userID integer NOT NULL, -- no foreign key: the Users row is removed when the purge completes
+                             requestedBy integer NOT NULL, -- User ID of the admin who deleted the user; stores the user managed are handed to them
+                             requestedOn timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                             status char(10) NOT NULL DEFAULT 'pending', -- status can be 'pending', 'done'
+                             rowsPurged integer NOT NULL DEFAULT 0, -- dependent rows removed so far, updated with every batch
+                             lastBatchOn timestamp,
+                             PRIMARY KEY(userID)
+);
+
+CREATE TABLE ReorderPolicies ( storeID integer NOT NULL, -- only stores with a policy are restocked by the replenishment engine
+                               reorderPoint integer NOT NULL CHECK(reorderPoint >= 0), -- an order taking a product's units from above to at or below this point triggers a restock
+                               reorderQuantity integer NOT NULL CHECK(reorderQuantity > 0), -- units requested from the store's nearest warehouse per restock
+                               PRIMARY KEY(storeID),
+                               FOREIGN KEY(storeID) REFERENCES Store(storeID)
+);
+
+-- bumps the version sequence passed as the trigger argument
+CREATE OR REPLACE FUNCTION bump_version_seq() RETURNS trigger AS $$
+BEGIN
+   PERFORM nextval(TG_ARGV[0]);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- stamps new and updated product rows with a new change number; deletes and renames cannot be patched row by row so they bump the rekey sequence instead
+CREATE OR REPLACE FUNCTION stamp_product_change() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      PERFORM nextval('product_rekey_seq');
+      RETURN OLD;
+   END IF;
+   IF TG_OP = 'UPDATE' THEN
+      IF NEW.storeID <> OLD.storeID OR NEW.productName <> OLD.productName THEN
+         PERFORM nextval('product_rekey_seq');
+      END IF;
+   END IF;
+   -- take a transaction id before the change number, so a snapshot that sees this transaction finished covers the number
+   PERFORM txid_current();
+   NEW.changeNumber := nextval('product_change_seq');
+   RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER store_version AFTER INSERT OR UPDATE OR DELETE ON Store FOR EACH STATEMENT EXECUTE PROCEDURE bump_version_seq('store_version_seq');
+CREATE TRIGGER product_change BEFORE INSERT OR UPDATE OR DELETE ON Product FOR EACH ROW EXECUTE PROCEDURE stamp_product_change();
@@ -1,4 +1,4 @@
-COPY Users
+COPY Users (userID, name, password, latitude, longitude, type)
 FROM '/extra/kwu116/project/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE users_userID_seq RESTART 101;
@@ -7,7 +7,7 @@ COPY Store
 FROM '/extra/kwu116/project/data/stores.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Product
+COPY Product (storeID, productName, numberOfUnits, pricePerUnit)
 FROM '/extra/kwu116/project/data/products.csv'
 WITH DELIMITER ',' CSV HEADER;
 
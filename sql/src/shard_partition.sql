@@ -0,0 +1,17 @@
+-- Keeps only this shard's part of the store scoped tables after load_data.sql.
+-- Run on every shard with: psql -v shards=<number of shards> -v shard=<this shard, 0 based>
+-- A store lives on shard storeID % shards; Users, Store, Warehouse and ReorderPolicies stay whole on every shard.
+
+-- interleave the serial keys so numbers stay unique across shards: shard i hands out base + i, base + i + shards, ...
+-- the base is taken from the loaded rows before the deletes, so it is the same on every shard whatever load_data.sql inserted
+SELECT setval('orders_ordernumber_seq', (SELECT COALESCE(MAX(orderNumber), 0) FROM Orders) + 1 + :shard, false);
+ALTER SEQUENCE orders_orderNumber_seq INCREMENT BY :shards;
+SELECT setval('productsupplyrequests_requestnumber_seq', (SELECT COALESCE(MAX(requestNumber), 0) FROM ProductSupplyRequests) + 1 + :shard, false);
+ALTER SEQUENCE productsupplyrequests_requestNumber_seq INCREMENT BY :shards;
+SELECT setval('productupdates_updatenumber_seq', (SELECT COALESCE(MAX(updateNumber), 0) FROM ProductUpdates) + 1 + :shard, false);
+ALTER SEQUENCE productupdates_updateNumber_seq INCREMENT BY :shards;
+
+DELETE FROM Orders WHERE storeID % :shards <> :shard;
+DELETE FROM ProductUpdates WHERE storeID % :shards <> :shard;
+DELETE FROM ProductSupplyRequests WHERE storeID % :shards <> :shard;
+DELETE FROM Product WHERE storeID % :shards <> :shard;